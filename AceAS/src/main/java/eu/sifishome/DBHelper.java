@@ -1,8 +1,11 @@
 package eu.sifishome;
 
+import eu.sifishome.db.AceDBConnector;
+import eu.sifishome.db.ConnectionPool;
+import eu.sifishome.db.H2DBAdapter;
+import eu.sifishome.db.PeerRegistry;
+import eu.sifishome.db.PooledMySQLDBAdapter;
 import se.sics.ace.AceException;
-import se.sics.ace.coap.as.CoapDBConnector;
-import se.sics.ace.examples.MySQLDBAdapter;
 import se.sics.ace.examples.SQLConnector;
 import se.sics.ace.examples.SQLDBAdapter;
 
@@ -12,6 +15,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.sql.Connection;
 import java.sql.SQLException;
 
 /**
@@ -20,10 +24,17 @@ import java.sql.SQLException;
  * @author Sebastian Echeverria and Marco Tiloca and Marco Rasori
  */
 public class DBHelper {
+
+    /**
+     * Prefix of the database URIs that select the in-memory database,
+     * e.g., "mem:" or "mem:/path/to/snapshot.sql"
+     */
+    public static final String IN_MEMORY_PREFIX = "mem:";
+
     /**
      * Easy place to change which DB adapter wants to be used for all tests.
      */
-    private static SQLDBAdapter dbAdapter = new MySQLDBAdapter();
+    private static SQLDBAdapter dbAdapter = new PooledMySQLDBAdapter();
 
     private static String testUsername = "testuser";
     private static String testPassword = "testpwd";
@@ -33,8 +44,12 @@ public class DBHelper {
     private static String dbAdminPwd = null;
     private static String dbUrl = null;
 
+    private static int poolSize = ConnectionPool.DEFAULT_POOL_SIZE;
+    private static long poolValidationTimeout = ConnectionPool.DEFAULT_VALIDATION_TIMEOUT;
+    private static int statementCacheSize = ConnectionPool.DEFAULT_STATEMENT_CACHE_SIZE;
+
     protected static void restoreDefaultClassFields() {
-        dbAdapter = new MySQLDBAdapter();
+        dbAdapter = new PooledMySQLDBAdapter();
 
         testUsername = "testuser";
         testPassword = "testpwd";
@@ -43,6 +58,27 @@ public class DBHelper {
         dbAdminUser = null;
         dbAdminPwd = null;
         dbUrl = null;
+
+        poolSize = ConnectionPool.DEFAULT_POOL_SIZE;
+        poolValidationTimeout = ConnectionPool.DEFAULT_VALIDATION_TIMEOUT;
+        statementCacheSize = ConnectionPool.DEFAULT_STATEMENT_CACHE_SIZE;
+    }
+
+    /**
+     * Configures the pool of database connections.
+     * It must be called before setting up the DB.
+     *
+     * @param size               the maximum number of pooled connections,
+     *                           or 0 to disable pooling
+     * @param validationTimeout  the maximum time (in milliseconds) to wait
+     *                           for a connection to be validated as alive
+     * @param cacheSize          the number of prepared statements cached
+     *                           for each connection
+     */
+    public static void setPoolSettings(int size, long validationTimeout, int cacheSize) {
+        poolSize = size;
+        poolValidationTimeout = validationTimeout;
+        statementCacheSize = cacheSize;
     }
 
     /**
@@ -52,6 +88,29 @@ public class DBHelper {
      * @throws IOException  if loading admin information fails
      */
     public static void setUpDB(String dbUrl) throws AceException, IOException {
+        setUpDB(dbUrl, false);
+    }
+
+    /**
+     * Sets up the DB using the current default adapter, possibly reusing
+     * the existing one.
+     *
+     * @param resume true to reuse the existing DB, if its schema version
+     *               is the current one
+     * @return true if the existing DB is reused
+     * @throws AceException if acting on the database fails
+     * @throws IOException  if loading admin information fails
+     */
+    public static boolean setUpDB(String dbUrl, boolean resume) throws AceException, IOException {
+        if (isInMemory(dbUrl)) {
+            parseInMemoryUrl(dbUrl);
+            if (resume && resumeDB()) {
+                return true;
+            }
+            createDB();
+            return false;
+        }
+
         // First load the DB admin username and password from an external file.
         try {
             loadAdminLoginInformation();
@@ -75,8 +134,20 @@ public class DBHelper {
             throw new AceException("Cannot retrieve admin username and password for the database");
         }
 
-        // Set parameters for the DB.
-        dbAdapter.setParams(testUsername, testPassword, testDBName, DBHelper.dbUrl);
+        if (resume && resumeDB()) {
+            return true;
+        }
+        createDB();
+        return false;
+    }
+
+    /**
+     * Creates the DB and user with the current adapter, wiping them first if they exist.
+     *
+     * @throws AceException if acting on the database fails
+     */
+    private static void createDB() throws AceException {
+        setAdapterParams();
 
         // In case database and/or user already existed.
         SQLConnector.wipeDatabase(dbAdapter, dbAdminUser, dbAdminPwd);
@@ -84,6 +155,52 @@ public class DBHelper {
         // Create the DB and user for the tests.
         SQLConnector.createUser(dbAdapter, dbAdminUser, dbAdminPwd);
         SQLConnector.createDB(dbAdapter, dbAdminUser, dbAdminPwd);
+        getPeerRegistry().create();
+    }
+
+    /**
+     * Reuses the existing DB with the current adapter, if its schema
+     * version is the current one. The in-memory DB is restored from
+     * its snapshot file, if any.
+     *
+     * @return true if the existing DB can be reused
+     * @throws AceException if acting on the database fails
+     */
+    private static boolean resumeDB() throws AceException {
+        setAdapterParams();
+
+        if (dbAdapter instanceof H2DBAdapter) {
+            SQLConnector.createUser(dbAdapter, dbAdminUser, dbAdminPwd);
+            ((H2DBAdapter) dbAdapter).restore(dbAdminUser, dbAdminPwd);
+        }
+
+        Integer version = getPeerRegistry().getSchemaVersion();
+        if (version == null || version != PeerRegistry.SCHEMA_VERSION) {
+            System.out.println("Cannot reuse the existing database (schema version: "
+                    + version + ", expected: " + PeerRegistry.SCHEMA_VERSION + "). "
+                    + "Creating a new one...");
+            if (dbAdapter instanceof PooledMySQLDBAdapter) {
+                ((PooledMySQLDBAdapter) dbAdapter).closePool();
+            }
+            return false;
+        }
+        System.out.println("Reusing the existing database");
+        return true;
+    }
+
+    private static void setAdapterParams() {
+        dbAdapter.setParams(testUsername, testPassword, testDBName, DBHelper.dbUrl);
+        if (dbAdapter instanceof PooledMySQLDBAdapter) {
+            ((PooledMySQLDBAdapter) dbAdapter).setPoolSettings(
+                    poolSize, poolValidationTimeout, statementCacheSize);
+        }
+    }
+
+    /**
+     * @return the registry of the peers set up in the DB
+     */
+    public static PeerRegistry getPeerRegistry() {
+        return new PeerRegistry(DBHelper::getConnection);
     }
 
     /**
@@ -99,9 +216,29 @@ public class DBHelper {
      * @return the CoapDBConnector instance
      * @throws SQLException if an error occurs when retrieving the CoapDBConnector istance
      */
-    public static CoapDBConnector getCoapDBConnector() throws SQLException {
+    public static AceDBConnector getCoapDBConnector() throws SQLException {
         // Get a connection to the test DB.
-        return CoapDBConnector.getInstance(dbAdapter);
+        return AceDBConnector.getInstance(dbAdapter);
+    }
+
+    /**
+     * @return a connection to the test DB, borrowed from the pool if pooling is enabled.
+     * Closing the connection returns it to the pool
+     * @throws SQLException if an error occurs when connecting to the database
+     */
+    public static Connection getConnection() throws SQLException {
+        return dbAdapter.getDBConnection();
+    }
+
+    /**
+     * @return the pool of database connections, or null if pooling
+     * is disabled or no connection has been requested yet
+     */
+    public static ConnectionPool getConnectionPool() {
+        if (dbAdapter instanceof PooledMySQLDBAdapter) {
+            return ((PooledMySQLDBAdapter) dbAdapter).getPool();
+        }
+        return null;
     }
 
     /**
@@ -111,9 +248,57 @@ public class DBHelper {
      */
     public static void tearDownDB() throws AceException {
         dbAdapter.setParams(testUsername, testPassword, testDBName, null);
+        if (dbAdapter instanceof H2DBAdapter) {
+            ((H2DBAdapter) dbAdapter).snapshot(dbAdminUser, dbAdminPwd);
+        }
+        if (dbAdapter instanceof PooledMySQLDBAdapter) {
+            ((PooledMySQLDBAdapter) dbAdapter).closePool();
+        }
         SQLConnector.wipeDatabase(dbAdapter, dbAdminUser, dbAdminPwd);
     }
 
+    /**
+     * Closes the connections to the DB with the default adapter, leaving the DB
+     * in place so that it can be reused. The in-memory DB is saved to its
+     * snapshot file, if any.
+     *
+     * @throws AceException if an error occurs when saving the database
+     */
+    public static void closeDB() throws AceException {
+        if (dbAdapter instanceof H2DBAdapter) {
+            ((H2DBAdapter) dbAdapter).snapshot(dbAdminUser, dbAdminPwd);
+        }
+        if (dbAdapter instanceof PooledMySQLDBAdapter) {
+            ((PooledMySQLDBAdapter) dbAdapter).closePool();
+        }
+    }
+
+    /**
+     * @param url the url of the database
+     * @return true if the url selects the in-memory database
+     */
+    public static boolean isInMemory(String url) {
+        return url != null && url.startsWith(IN_MEMORY_PREFIX);
+    }
+
+    /**
+     * Parse the url of the in-memory database and select the H2 adapter.
+     * The url has the form "mem:" or "mem:snapshotFile". In the latter case,
+     * the content of the database is saved in snapshotFile when the database
+     * is torn down.
+     *
+     * @param url the url of the in-memory database
+     */
+    private static void parseInMemoryUrl(String url) {
+        String snapshotPath = url.substring(IN_MEMORY_PREFIX.length());
+        File snapshotFile = snapshotPath.isEmpty() ? null : new File(snapshotPath);
+
+        dbAdapter = new H2DBAdapter(snapshotFile);
+        dbAdminUser = H2DBAdapter.ROOT_USER;
+        dbAdminPwd = H2DBAdapter.ROOT_PASSWORD;
+        dbUrl = null;
+    }
+
     /**
      * Loads the admin username and password form an external file.
      *
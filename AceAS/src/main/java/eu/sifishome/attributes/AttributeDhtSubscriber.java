@@ -0,0 +1,115 @@
+package eu.sifishome.attributes;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import jakarta.websocket.ClientEndpoint;
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.DeploymentException;
+import jakarta.websocket.OnClose;
+import jakarta.websocket.OnMessage;
+import jakarta.websocket.OnOpen;
+import jakarta.websocket.Session;
+import org.glassfish.tyrus.client.ClientManager;
+import se.sics.ace.AceException;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Subscriber of a DHT topic carrying attribute updates.
+ * <p>
+ * The DHT publishes messages in the form
+ * <pre>
+ * {"Volatile": {"value": {"topic": "topic-name",
+ *                         "message": {"attribute-name": "value", ...}}}}
+ * </pre>
+ * The attributes in a message are applied to the {@link AttributeStore}
+ * as a single batch. Messages for other topics are ignored, and messages
+ * with invalid or unknown attributes are logged and dropped.
+ */
+@ClientEndpoint
+public class AttributeDhtSubscriber {
+
+    private final AttributeStore store;
+    private final String topic;
+
+    /**
+     * @param store the store of the attributes
+     * @param topic the topic of the attribute updates
+     */
+    public AttributeDhtSubscriber(AttributeStore store, String topic) {
+        this.store = store;
+        this.topic = topic;
+    }
+
+    /**
+     * Connects to the DHT.
+     *
+     * @param dhtAddr the URI of the websocket of the DHT
+     * @throws AceException if the connection cannot be established
+     */
+    public void connect(String dhtAddr) throws AceException {
+        ClientManager dhtClient = ClientManager.createClient();
+        try {
+            dhtClient.asyncConnectToServer(this, new URI(dhtAddr));
+        } catch (DeploymentException | URISyntaxException e) {
+            throw new AceException("Failed to connect to the DHT: " + e.getMessage());
+        }
+    }
+
+    @OnOpen
+    public void onOpen(Session session) {
+        System.out.println("[DHT] - Subscribed to attribute updates on topic \"" + topic + "\"");
+    }
+
+    @OnClose
+    public void onClose(Session session, CloseReason closeReason) {
+        System.out.println("[DHT] - Session " + session.getId() + " closed because " + closeReason);
+    }
+
+    @OnMessage
+    public void onMessage(String message, Session session) {
+        Map<String, String> updates = parse(message, topic);
+        if (updates == null || updates.isEmpty()) {
+            return;
+        }
+        try {
+            store.update(updates);
+        } catch (AceException e) {
+            System.err.println("[DHT] - Unable to apply attribute updates: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a DHT message.
+     *
+     * @param message the JSON message
+     * @param topic   the topic of the attribute updates
+     * @return the attribute updates, or null if the message is malformed
+     * or belongs to another topic
+     */
+    public static Map<String, String> parse(String message, String topic) {
+        try {
+            JsonObject value = new Gson().fromJson(message, JsonObject.class)
+                    .getAsJsonObject("Volatile")
+                    .getAsJsonObject("value");
+            if (!topic.equals(value.get("topic").getAsString())) {
+                return null;
+            }
+            Map<String, String> updates = new HashMap<>();
+            for (Map.Entry<String, JsonElement> a : value.getAsJsonObject("message").entrySet()) {
+                if (!a.getValue().isJsonPrimitive()) {
+                    return null;
+                }
+                updates.put(a.getKey(), a.getValue().getAsString());
+            }
+            return updates;
+        } catch (JsonParseException | NullPointerException | ClassCastException | IllegalStateException e) {
+            return null;
+        }
+    }
+}
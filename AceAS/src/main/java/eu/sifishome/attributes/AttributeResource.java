@@ -0,0 +1,143 @@
+package eu.sifishome.attributes;
+
+import com.upokecenter.cbor.CBORException;
+import com.upokecenter.cbor.CBORObject;
+import com.upokecenter.cbor.CBORType;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import se.sics.ace.AceException;
+import se.sics.ace.coap.CoapReq;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * CoAP resource of the AS to read and update the mutable attributes.
+ * <p>
+ * Requests must be protected with OSCORE, and their sender must be
+ * authorized. A POST carries a CBOR map of attribute names and values,
+ * which is applied to the {@link AttributeStore} as a single batch.
+ * The response carries the version of the store after the update.
+ * A GET returns a CBOR map with the current values.
+ */
+public class AttributeResource extends CoapResource {
+
+    private final AttributeStore store;
+    private final Predicate<String> isAuthorized;
+
+    /**
+     * @param name         the name of the resource
+     * @param store        the store of the attributes
+     * @param isAuthorized tells whether a sender, identified by its OSCORE
+     *                     identity, can read and update the attributes
+     */
+    public AttributeResource(String name, AttributeStore store, Predicate<String> isAuthorized) {
+        super(name);
+        this.store = store;
+        this.isAuthorized = isAuthorized;
+        getAttributes().setTitle("Attributes Resource");
+    }
+
+    @Override
+    public void handleGET(CoapExchange exchange) {
+        Request request = exchange.advanced().getRequest();
+        if (!checkOscore(exchange)) {
+            return;
+        }
+        if (!isAuthorized(getSenderId(request))) {
+            exchange.respond(CoAP.ResponseCode.FORBIDDEN);
+            return;
+        }
+        CBORObject map = CBORObject.NewMap();
+        for (Map.Entry<String, String> a : store.getAll().entrySet()) {
+            map.Add(a.getKey(), a.getValue());
+        }
+        exchange.respond(CoAP.ResponseCode.CONTENT, map.EncodeToBytes(),
+                MediaTypeRegistry.APPLICATION_CBOR);
+    }
+
+    @Override
+    public void handlePOST(CoapExchange exchange) {
+        if (!checkOscore(exchange)) {
+            return;
+        }
+        exchange.respond(update(getSenderId(exchange.advanced().getRequest()),
+                exchange.getRequestPayload()));
+    }
+
+    /**
+     * Applies an update to the store
+     *
+     * @param senderId the OSCORE identity of the sender, or null if unknown
+     * @param payload  the payload of the request
+     * @return the response: 2.04 with the new version of the store, 4.03 if
+     * the sender is not authorized, 4.00 if the payload is not a CBOR map of
+     * text strings, or if it refers to an invalid or unknown attribute, and
+     * 5.00 if the attributes cannot be written
+     */
+    public Response update(String senderId, byte[] payload) {
+        if (!isAuthorized(senderId)) {
+            return new Response(CoAP.ResponseCode.FORBIDDEN);
+        }
+
+        Map<String, String> updates = new HashMap<>();
+        try {
+            CBORObject map = CBORObject.DecodeFromBytes(payload);
+            if (map.getType() != CBORType.Map) {
+                throw new CBORException("not a map");
+            }
+            for (CBORObject key : map.getKeys()) {
+                CBORObject value = map.get(key);
+                if (key.getType() != CBORType.TextString || value.getType() != CBORType.TextString) {
+                    throw new CBORException("attribute names and values must be text strings");
+                }
+                updates.put(key.AsString(), value.AsString());
+            }
+        } catch (CBORException | IllegalArgumentException | NullPointerException e) {
+            return response(CoAP.ResponseCode.BAD_REQUEST, "Expected a CBOR map of attribute names and values");
+        }
+
+        try {
+            store.update(updates);
+        } catch (AttributeStore.InvalidAttributeException e) {
+            return response(CoAP.ResponseCode.BAD_REQUEST, e.getMessage());
+        } catch (AceException e) {
+            return response(CoAP.ResponseCode.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+        Response response = new Response(CoAP.ResponseCode.CHANGED);
+        response.setPayload(CBORObject.FromObject(store.getVersion()).EncodeToBytes());
+        response.getOptions().setContentFormat(MediaTypeRegistry.APPLICATION_CBOR);
+        return response;
+    }
+
+    private static Response response(CoAP.ResponseCode code, String message) {
+        Response response = new Response(code);
+        response.setPayload(message);
+        return response;
+    }
+
+    private boolean checkOscore(CoapExchange exchange) {
+        if (!exchange.advanced().getRequest().getOptions().hasOscore()) {
+            exchange.respond(CoAP.ResponseCode.UNAUTHORIZED, "OSCORE protection required");
+            return false;
+        }
+        return true;
+    }
+
+    private static String getSenderId(Request request) {
+        try {
+            return CoapReq.getInstance(request).getSenderId();
+        } catch (AceException e) {
+            return null;
+        }
+    }
+
+    private boolean isAuthorized(String senderId) {
+        return senderId != null && isAuthorized.test(senderId);
+    }
+}
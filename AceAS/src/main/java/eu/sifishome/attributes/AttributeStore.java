@@ -0,0 +1,464 @@
+package eu.sifishome.attributes;
+
+import se.sics.ace.AceException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory store of the values of the mutable attributes.
+ * <p>
+ * Each attribute is mirrored in a file named after the attribute, e.g.,
+ * 'thermometer-reachable.txt', which is what the PIP readers of the UCS
+ * read. Files are only rewritten when the value of their attribute changes,
+ * and they are replaced atomically, so that a reader never sees a partial value.
+ * A batch of changes is atomic in memory, but not across files: a reader
+ * of the files may see some of the files of a batch replaced and others not yet.
+ * <p>
+ * Changes are pushed to the registered listeners, both when they are made
+ * through this store and, if watching is enabled, when a file is modified
+ * by an external process. Watching relies on file-change notifications,
+ * so an idle store costs no CPU, whatever the number of attributes.
+ * An externally modified file is loaded only once it has not been modified
+ * for {@link #SETTLE_MILLIS}, and empty or malformed values are ignored, so
+ * that a writer that does not replace the file atomically, e.g., by
+ * truncating it and then writing the value, never exposes a partial value.
+ * <p>
+ * Attributes are created with {@link #init}. Updates can only change the
+ * attributes that already exist, and attribute names must be valid file
+ * names (see {@link #isValidName(String)}).
+ */
+public class AttributeStore implements AutoCloseable {
+
+    public static final String FILE_EXTENSION = ".txt";
+    // time without modification after which an externally modified file is loaded, in milliseconds
+    public static final long SETTLE_MILLIS = 100L;
+
+    /**
+     * Thrown when an update refers to an invalid or unknown attribute
+     */
+    public static class InvalidAttributeException extends AceException {
+        public InvalidAttributeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Listener of the changes of the attributes
+     */
+    public interface Listener {
+        /**
+         * Called after a batch of changes is applied.
+         * It must not block, since it is called while holding the store lock.
+         *
+         * @param changed the new values, by attribute
+         * @param version the version of the store after the changes
+         */
+        void attributesChanged(Map<String, String> changed, long version);
+    }
+
+    private final File dir;
+    // immutable snapshot, replaced as a whole by each batch of changes
+    private volatile Map<String, String> values = Collections.emptyMap();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile long version = 0;
+
+    private WatchService watchService = null;
+    private Thread watcher = null;
+
+    /**
+     * Creates a store mirrored in the given directory, loading the
+     * attributes already there.
+     *
+     * @param dir the directory of the attribute files
+     * @throws AceException if the attribute files cannot be read
+     */
+    public AttributeStore(File dir) throws AceException {
+        this.dir = dir;
+        Map<String, String> loaded = new HashMap<>();
+        File[] files = dir.listFiles((d, name) -> isAttributeFile(name));
+        if (files != null) {
+            for (File f : files) {
+                String value = readFile(f.toPath());
+                if (value != null) {
+                    loaded.put(toAttribute(f.getName()), value);
+                }
+            }
+        }
+        this.values = Collections.unmodifiableMap(loaded);
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * @param attribute the name of the attribute, e.g., "thermometer-reachable"
+     * @return the value of the attribute, or null if it does not exist
+     */
+    public String get(String attribute) {
+        return values.get(attribute);
+    }
+
+    /**
+     * @return the current values, by attribute
+     */
+    public Map<String, String> getAll() {
+        return values;
+    }
+
+    /**
+     * @return the version of the store, increased by every batch of changes
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the file mirroring the attribute
+     */
+    public File getFile(String attribute) {
+        return new File(dir, attribute + FILE_EXTENSION);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Sets the value of an existing attribute.
+     *
+     * @param attribute the name of the attribute
+     * @param value     the new value
+     * @throws InvalidAttributeException if the attribute does not exist
+     * @throws AceException              if the attribute file cannot be written
+     */
+    public void set(String attribute, String value) throws AceException {
+        update(Collections.singletonMap(attribute, value));
+    }
+
+    /**
+     * Sets the value of an attribute, only if it does not exist yet.
+     *
+     * @param attribute the name of the attribute
+     * @param value     the initial value
+     * @throws InvalidAttributeException if the name of the attribute is not valid
+     * @throws AceException              if the attribute file cannot be written
+     */
+    public synchronized void init(String attribute, String value) throws AceException {
+        if (!values.containsKey(attribute)) {
+            apply(Collections.singletonMap(attribute, value), true);
+        }
+    }
+
+    /**
+     * Sets the value of the attributes that do not exist yet, in a single batch.
+     *
+     * @param initialValues the initial values, by attribute
+     * @throws InvalidAttributeException if the name of an attribute is not valid
+     * @throws AceException              if an attribute file cannot be written
+     */
+    public synchronized void init(Map<String, String> initialValues) throws AceException {
+        Map<String, String> missing = new HashMap<>();
+        for (Map.Entry<String, String> v : initialValues.entrySet()) {
+            if (!values.containsKey(v.getKey())) {
+                missing.put(v.getKey(), v.getValue());
+            }
+        }
+        apply(missing, true);
+    }
+
+    /**
+     * Applies a batch of changes. The batch is applied as a whole: readers
+     * of this store see either none or all the changes, and listeners are
+     * notified once, with the attributes whose value actually changed.
+     *
+     * @param updates the new values, by attribute
+     * @throws InvalidAttributeException if an attribute does not exist. In
+     *                                   that case, nothing is changed
+     * @throws AceException              if an attribute file cannot be
+     *                                   written. In that case, neither the
+     *                                   values in memory nor the files are
+     *                                   changed
+     */
+    public synchronized void update(Map<String, String> updates) throws AceException {
+        apply(updates, false);
+    }
+
+    private void apply(Map<String, String> updates, boolean create) throws AceException {
+        Map<String, String> changed = new LinkedHashMap<>();
+        for (Map.Entry<String, String> u : updates.entrySet()) {
+            if (!isValidName(u.getKey())) {
+                throw new InvalidAttributeException("Invalid attribute name: " + u.getKey());
+            }
+            if (!create && !values.containsKey(u.getKey())) {
+                throw new InvalidAttributeException("Unknown attribute: " + u.getKey());
+            }
+            if (u.getValue() == null) {
+                throw new InvalidAttributeException("Null value for attribute " + u.getKey());
+            }
+            if (!u.getValue().equals(values.get(u.getKey()))) {
+                changed.put(u.getKey(), u.getValue());
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        writeFiles(changed);
+        publish(changed);
+    }
+
+    /**
+     * Writes the files of a batch of changes. All the new values are first
+     * written to temporary files, which are then moved in place. If a move
+     * fails, the files already replaced are restored.
+     */
+    private void writeFiles(Map<String, String> changed) throws AceException {
+        Map<String, Path> staged = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, String> c : changed.entrySet()) {
+                staged.put(c.getKey(), stage(c.getKey(), c.getValue()));
+            }
+        } catch (AceException e) {
+            discard(staged.values());
+            throw e;
+        }
+
+        List<String> replaced = new ArrayList<>();
+        for (Map.Entry<String, Path> f : staged.entrySet()) {
+            try {
+                Files.move(f.getValue(), getFile(f.getKey()).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                replaced.add(f.getKey());
+            } catch (IOException e) {
+                discard(staged.values());
+                rollback(replaced);
+                throw new AceException("Unable to write attribute " + f.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Restores the files of the attributes to their values in memory
+     */
+    private void rollback(List<String> attributes) {
+        for (String attribute : attributes) {
+            String previous = values.get(attribute);
+            try {
+                if (previous == null) {
+                    Files.deleteIfExists(getFile(attribute).toPath());
+                } else {
+                    Files.move(stage(attribute, previous), getFile(attribute).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException | AceException e) {
+                System.err.println("Unable to restore attribute " + attribute + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void discard(Collection<Path> files) {
+        for (Path f : files) {
+            try {
+                Files.deleteIfExists(f);
+            } catch (IOException e) {
+                // left behind, it is ignored as it is not an attribute file
+            }
+        }
+    }
+
+    private void publish(Map<String, String> changed) {
+        Map<String, String> newValues = new HashMap<>(values);
+        newValues.putAll(changed);
+        values = Collections.unmodifiableMap(newValues);
+        version++;
+        for (Listener l : listeners) {
+            l.attributesChanged(changed, version);
+        }
+    }
+
+    /**
+     * Starts watching the directory of the attribute files, so that
+     * modifications made by other processes are loaded into this store.
+     *
+     * @throws AceException if the directory cannot be watched
+     */
+    public synchronized void startWatching() throws AceException {
+        if (watcher != null) {
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            dir.toPath().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            throw new AceException("Unable to watch the attributes directory: " + e.getMessage());
+        }
+        WatchService ws = watchService;
+        watcher = new Thread(() -> watch(ws), "attribute-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void watch(WatchService ws) {
+        // externally modified attributes, with the time they settle at
+        Map<String, Long> pending = new HashMap<>();
+        try {
+            while (true) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = ws.take();
+                } else {
+                    long wait = Collections.min(pending.values()) - now();
+                    key = wait > 0 ? ws.poll(wait, TimeUnit.MILLISECONDS) : ws.poll();
+                }
+                if (key != null) {
+                    long settled = now() + SETTLE_MILLIS;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            File[] files = dir.listFiles((d, name) -> isAttributeFile(name));
+                            if (files != null) {
+                                for (File f : files) {
+                                    pending.put(toAttribute(f.getName()), settled);
+                                }
+                            }
+                            continue;
+                        }
+                        String fileName = event.context().toString();
+                        if (isAttributeFile(fileName)) {
+                            pending.put(toAttribute(fileName), settled);
+                        }
+                    }
+                    if (!key.reset()) {
+                        return;
+                    }
+                }
+                long now = now();
+                Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, Long> p = it.next();
+                    if (p.getValue() <= now) {
+                        it.remove();
+                        reload(p.getKey());
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closing
+        }
+    }
+
+    private synchronized void reload(String attribute) {
+        String value = readFile(getFile(attribute).toPath());
+        if (value == null || value.isEmpty()) {
+            System.err.println("Ignoring the empty or malformed value of attribute " + attribute);
+            return;
+        }
+        if (!value.equals(values.get(attribute))) {
+            publish(Collections.singletonMap(attribute, value));
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Stops watching the directory of the attribute files
+     */
+    @Override
+    public synchronized void close() {
+        if (watcher == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        watcher.interrupt();
+        watcher = null;
+        watchService = null;
+    }
+
+    /**
+     * Writes a value to a temporary file, to be moved in place of the attribute file
+     */
+    private Path stage(String attribute, String value) throws AceException {
+        Path tmp = new File(dir, "." + attribute + FILE_EXTENSION + ".tmp").toPath();
+        try {
+            Files.write(tmp, value.getBytes(StandardCharsets.UTF_8));
+            return tmp;
+        } catch (IOException e) {
+            throw new AceException("Unable to write attribute " + attribute + ": " + e.getMessage());
+        }
+    }
+
+    private static String readFile(Path file) {
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(Files.readAllBytes(file))).toString();
+        } catch (IOException e) {
+            // the file is being replaced or written, or it was deleted
+            return null;
+        }
+    }
+
+    /**
+     * Tells whether a name can be used for an attribute. Since each attribute
+     * is mirrored in a file in the attributes directory, the name must not
+     * contain path separators, '..' or control characters, and must not start
+     * with '.', as the names of the temporary files do.
+     *
+     * @param attribute the name of the attribute
+     * @return true if the name is valid
+     */
+    public static boolean isValidName(String attribute) {
+        if (attribute == null || attribute.isEmpty() || attribute.startsWith(".")
+                || attribute.contains("..") || attribute.contains("/") || attribute.contains("\\")) {
+            return false;
+        }
+        for (int i = 0; i < attribute.length(); i++) {
+            if (Character.isISOControl(attribute.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAttributeFile(String fileName) {
+        return fileName.endsWith(FILE_EXTENSION) && !fileName.startsWith(".");
+    }
+
+    private static String toAttribute(String fileName) {
+        return fileName.substring(0, fileName.length() - FILE_EXTENSION.length());
+    }
+}
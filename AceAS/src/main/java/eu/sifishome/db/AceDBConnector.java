@@ -0,0 +1,579 @@
+package eu.sifishome.db;
+
+import COSE.CoseException;
+import COSE.OneKey;
+import com.upokecenter.cbor.CBORObject;
+import se.sics.ace.AceException;
+import se.sics.ace.COSEparams;
+import se.sics.ace.coap.as.CoapDBConnector;
+import se.sics.ace.examples.SQLDBAdapter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Database connector of the AS.
+ * <p>
+ * It extends the CoapDBConnector with an optional write-behind stage
+ * for the issued tokens (see {@link TokenWriteBehind}), and with a
+ * read-through cache for the registration data of the peers
+ * (see {@link PeerCache}). Listeners can follow the lifecycle of the
+ * issued tokens (see {@link TokenListener}).
+ * <p>
+ * The CoapDBConnector runs all its statements on the single connection it
+ * opens when it is created. With a pooled adapter, the statements on the
+ * token path (claims, token-to-client mapping and CTI counter), which are
+ * run for every token issued or introspected, are instead run on a
+ * connection borrowed from the pool for each operation, so that
+ * concurrent requests do not wait for each other.
+ */
+public class AceDBConnector extends CoapDBConnector {
+
+    private static AceDBConnector connector = null;
+
+    private volatile TokenWriteBehind writeBehind = null;
+
+    private final PeerCache peerCache = new PeerCache();
+
+    // source of the connections of the token path, or null to use the connection of the CoapDBConnector
+    private final ConnectionPool.ConnectionFactory connections;
+
+    /**
+     * Operation run on a connection borrowed from the pool
+     */
+    private interface PooledOperation<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    /**
+     * Listener of the lifecycle of the issued tokens
+     */
+    public interface TokenListener {
+        /**
+         * Called when a token is issued, once both its claims and its client are known.
+         *
+         * @param cti      the CTI of the token
+         * @param clientId the client the token was issued to
+         * @param claims   the claims of the token, or null if no registered
+         *                 listener uses them (see {@link #usesClaims()})
+         */
+        void tokenAdded(String cti, String clientId, Map<Short, CBORObject> claims);
+
+        /**
+         * @return true if the listener reads the claims of the issued tokens.
+         * Otherwise, the claims are neither kept nor read for it
+         */
+        default boolean usesClaims() {
+            return true;
+        }
+
+        /**
+         * Called when a token is deleted.
+         *
+         * @param cti the CTI of the token
+         */
+        void tokenRemoved(String cti);
+
+        /**
+         * Called when several tokens are deleted together, e.g., by the
+         * reclamation of the expired tokens.
+         *
+         * @param ctis the CTIs of the tokens
+         */
+        default void tokensRemoved(Collection<String> ctis) {
+            for (String cti : ctis) {
+                tokenRemoved(cti);
+            }
+        }
+
+        /**
+         * Called when the tokens expired before the given time are purged.
+         *
+         * @param now the current time, in milliseconds
+         */
+        void tokensExpired(long now);
+    }
+
+    private final List<TokenListener> tokenListeners = new CopyOnWriteArrayList<>();
+    // claims of the tokens whose client is not known yet, kept only if a listener uses them
+    private final Map<String, Map<Short, CBORObject>> pendingClaims = new ConcurrentHashMap<>();
+    private volatile boolean claimsUsed = false;
+
+    protected AceDBConnector(SQLDBAdapter dbAdapter) throws SQLException {
+        super(dbAdapter);
+        if (dbAdapter instanceof PooledMySQLDBAdapter && ((PooledMySQLDBAdapter) dbAdapter).isPooled()) {
+            this.connections = dbAdapter::getDBConnection;
+        } else {
+            this.connections = null;
+        }
+    }
+
+    /**
+     * Gets the singleton instance of this connector.
+     *
+     * @param dbAdapter the adapter for the specific database
+     * @return the singleton instance
+     * @throws SQLException if the connection to the database fails
+     */
+    public static synchronized AceDBConnector getInstance(SQLDBAdapter dbAdapter) throws SQLException {
+        if (connector == null) {
+            connector = new AceDBConnector(dbAdapter);
+        }
+        return connector;
+    }
+
+    /**
+     * Enables the write-behind of the issued tokens
+     *
+     * @param writeBehind the write-behind stage
+     */
+    public synchronized void setWriteBehind(TokenWriteBehind writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * Writes the queued tokens and disables the write-behind
+     *
+     * @throws AceException if writing the queued tokens fails
+     */
+    public synchronized void closeWriteBehind() throws AceException {
+        if (writeBehind != null) {
+            writeBehind.close();
+            System.out.println(writeBehind);
+            writeBehind = null;
+        }
+    }
+
+    /**
+     * @return the cache of the registration data of the peers
+     */
+    public PeerCache getPeerCache() {
+        return peerCache;
+    }
+
+    public void addTokenListener(TokenListener listener) {
+        tokenListeners.add(listener);
+        claimsUsed = tokenListeners.stream().anyMatch(TokenListener::usesClaims);
+    }
+
+    public void removeTokenListener(TokenListener listener) {
+        tokenListeners.remove(listener);
+        claimsUsed = tokenListeners.stream().anyMatch(TokenListener::usesClaims);
+        if (!claimsUsed) {
+            pendingClaims.clear();
+        }
+    }
+
+    @Override
+    public void addClient(String clientId, Set<String> profiles, String defaultScope,
+                          String defaultAud, Set<String> keyTypes, OneKey sharedKey,
+                          OneKey publicKey) throws AceException {
+        try {
+            super.addClient(clientId, profiles, defaultScope, defaultAud, keyTypes, sharedKey, publicKey);
+        } finally {
+            peerCache.invalidate();
+        }
+    }
+
+    @Override
+    public void deleteClient(String clientId) throws AceException {
+        try {
+            super.deleteClient(clientId);
+        } finally {
+            peerCache.invalidate();
+        }
+    }
+
+    @Override
+    public void addRS(String rsId, Set<String> profiles, Set<String> scopes, Set<String> auds,
+                      Set<String> keyTypes, Set<Short> tokenTypes, Set<COSEparams> cose,
+                      long expiration, OneKey authPsk, OneKey tokenPsk, OneKey publicKey)
+            throws AceException {
+        try {
+            super.addRS(rsId, profiles, scopes, auds, keyTypes, tokenTypes, cose,
+                    expiration, authPsk, tokenPsk, publicKey);
+        } finally {
+            peerCache.invalidate();
+        }
+    }
+
+    @Override
+    public void deleteRS(String rsId) throws AceException {
+        try {
+            super.deleteRS(rsId);
+        } finally {
+            peerCache.invalidate();
+        }
+    }
+
+    @Override
+    public String getSupportedProfile(String clientId, Set<String> aud) throws AceException {
+        return peerCache.get(PeerCache.key("profile", clientId, aud),
+                () -> super.getSupportedProfile(clientId, aud));
+    }
+
+    @Override
+    public boolean isProfileSupported(String clientId, String profile) throws AceException {
+        return peerCache.get(PeerCache.key("isProfile", clientId, profile),
+                () -> super.isProfileSupported(clientId, profile));
+    }
+
+    @Override
+    public String getSupportedPopKeyType(String clientId, Set<String> aud) throws AceException {
+        return peerCache.get(PeerCache.key("popKeyType", clientId, aud),
+                () -> super.getSupportedPopKeyType(clientId, aud));
+    }
+
+    @Override
+    public Short getSupportedTokenType(Set<String> aud) throws AceException {
+        return peerCache.get(PeerCache.key("tokenType", aud),
+                () -> super.getSupportedTokenType(aud));
+    }
+
+    @Override
+    public COSEparams getSupportedCoseParams(Set<String> aud) throws AceException {
+        return peerCache.get(PeerCache.key("cose", aud),
+                () -> super.getSupportedCoseParams(aud));
+    }
+
+    @Override
+    public boolean isScopeSupported(String aud, Object scope) throws AceException {
+        return peerCache.get(PeerCache.key("isScope", aud, scope),
+                () -> super.isScopeSupported(aud, scope));
+    }
+
+    @Override
+    public String getDefaultScope(String clientId) throws AceException {
+        return peerCache.get(PeerCache.key("defaultScope", clientId),
+                () -> super.getDefaultScope(clientId));
+    }
+
+    @Override
+    public String getDefaultAudience(String clientId) throws AceException {
+        return peerCache.get(PeerCache.key("defaultAud", clientId),
+                () -> super.getDefaultAudience(clientId));
+    }
+
+    @Override
+    public Set<String> getRSS(String aud) throws AceException {
+        Set<String> rss = peerCache.get(PeerCache.key("rss", aud), () -> super.getRSS(aud));
+        return rss == null ? null : new HashSet<>(rss);
+    }
+
+    @Override
+    public Set<String> getAudiences(String rsId) throws AceException {
+        Set<String> auds = peerCache.get(PeerCache.key("auds", rsId), () -> super.getAudiences(rsId));
+        return auds == null ? null : new HashSet<>(auds);
+    }
+
+    @Override
+    public long getExpTime(Set<String> aud) throws AceException {
+        return peerCache.get(PeerCache.key("exp", aud), () -> super.getExpTime(aud));
+    }
+
+    @Override
+    public OneKey getRsTokenPSK(String rsId) throws AceException {
+        return copy(peerCache.get(PeerCache.key("rsTokenPsk", rsId), () -> super.getRsTokenPSK(rsId)));
+    }
+
+    @Override
+    public OneKey getRsAuthPSK(String rsId) throws AceException {
+        return copy(peerCache.get(PeerCache.key("rsAuthPsk", rsId), () -> super.getRsAuthPSK(rsId)));
+    }
+
+    @Override
+    public OneKey getRsRPK(String rsId) throws AceException {
+        return copy(peerCache.get(PeerCache.key("rsRpk", rsId), () -> super.getRsRPK(rsId)));
+    }
+
+    @Override
+    public OneKey getCPSK(String clientId) throws AceException {
+        return copy(peerCache.get(PeerCache.key("cPsk", clientId), () -> super.getCPSK(clientId)));
+    }
+
+    @Override
+    public OneKey getCRPK(String clientId) throws AceException {
+        return copy(peerCache.get(PeerCache.key("cRpk", clientId), () -> super.getCRPK(clientId)));
+    }
+
+    /**
+     * Copies a cached key, so that callers cannot alter the cached one
+     */
+    private static OneKey copy(OneKey key) throws AceException {
+        if (key == null) {
+            return null;
+        }
+        try {
+            return new OneKey(CBORObject.DecodeFromBytes(key.AsCBOR().EncodeToBytes()));
+        } catch (CoseException e) {
+            throw new AceException("Unable to copy key: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void addToken(String cti, Map<Short, CBORObject> claims) throws AceException {
+        TokenWriteBehind wb = writeBehind;
+        if (wb == null && connections == null) {
+            super.addToken(cti, claims);
+        } else if (wb == null) {
+            pooled("add token", conn -> {
+                conn.setAutoCommit(false);
+                try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + claimsTable
+                        + " (" + ctiColumn + ", " + claimNameColumn + ", " + claimValueColumn
+                        + ") VALUES (?, ?, ?);")) {
+                    for (Map.Entry<Short, CBORObject> claim : claims.entrySet()) {
+                        stmt.setString(1, cti);
+                        stmt.setShort(2, claim.getKey());
+                        stmt.setBytes(3, claim.getValue().EncodeToBytes());
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+                return null;
+            });
+        } else {
+            wb.addToken(cti, claims);
+        }
+        // the Token endpoint adds the claims of a token before its client
+        if (claimsUsed) {
+            pendingClaims.put(cti, claims);
+        }
+    }
+
+    @Override
+    public Map<Short, CBORObject> getClaims(String cti) throws AceException {
+        TokenWriteBehind wb = writeBehind;
+        if (wb != null) {
+            Map<Short, CBORObject> claims = wb.getPendingClaims(cti);
+            if (claims != null) {
+                return claims;
+            }
+        }
+        if (connections == null) {
+            return super.getClaims(cti);
+        }
+        return pooled("read the claims", conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT " + claimNameColumn + ", "
+                    + claimValueColumn + " FROM " + claimsTable + " WHERE " + ctiColumn + " = ?;")) {
+                stmt.setString(1, cti);
+                Map<Short, CBORObject> claims = new HashMap<>();
+                try (ResultSet result = stmt.executeQuery()) {
+                    while (result.next()) {
+                        claims.put(result.getShort(claimNameColumn),
+                                CBORObject.DecodeFromBytes(result.getBytes(claimValueColumn)));
+                    }
+                }
+                return claims;
+            }
+        });
+    }
+
+    @Override
+    public void deleteToken(String cti) throws AceException {
+        delete(cti);
+        for (TokenListener l : tokenListeners) {
+            l.tokenRemoved(cti);
+        }
+    }
+
+    /**
+     * Deletes several tokens, notifying the listeners once. The tokens
+     * that cannot be deleted are reported and skipped.
+     *
+     * @param ctis the CTIs of the tokens
+     * @return the CTIs of the deleted tokens
+     */
+    public List<String> deleteTokens(Collection<String> ctis) {
+        List<String> deleted = new ArrayList<>(ctis.size());
+        for (String cti : ctis) {
+            try {
+                delete(cti);
+                deleted.add(cti);
+            } catch (AceException e) {
+                System.err.println("Unable to delete token " + cti + ": " + e.getMessage());
+            }
+        }
+        if (!deleted.isEmpty()) {
+            for (TokenListener l : tokenListeners) {
+                l.tokensRemoved(deleted);
+            }
+        }
+        return deleted;
+    }
+
+    private void delete(String cti) throws AceException {
+        TokenWriteBehind wb = writeBehind;
+        if (wb != null) {
+            wb.forget(cti);
+        }
+        super.deleteToken(cti);
+        pendingClaims.remove(cti);
+    }
+
+    @Override
+    public void purgeExpiredTokens(long now) throws AceException {
+        TokenWriteBehind wb = writeBehind;
+        if (wb != null) {
+            wb.flush();
+        }
+        super.purgeExpiredTokens(now);
+        for (TokenListener l : tokenListeners) {
+            l.tokensExpired(now);
+        }
+    }
+
+    @Override
+    public void addCti2Client(String cti, String clientId) throws AceException {
+        TokenWriteBehind wb = writeBehind;
+        if (wb == null && connections == null) {
+            super.addCti2Client(cti, clientId);
+        } else if (wb == null) {
+            pooled("add the client of a token", conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + cti2clientTable
+                        + " (" + ctiColumn + ", " + clientIdColumn + ") VALUES (?, ?);")) {
+                    stmt.setString(1, cti);
+                    stmt.setString(2, clientId);
+                    return stmt.executeUpdate();
+                }
+            });
+        } else {
+            wb.addCti2Client(cti, clientId);
+        }
+        if (!tokenListeners.isEmpty()) {
+            Map<Short, CBORObject> claims = null;
+            if (claimsUsed) {
+                claims = pendingClaims.remove(cti);
+                if (claims == null) {
+                    claims = getClaims(cti);
+                }
+            }
+            for (TokenListener l : tokenListeners) {
+                l.tokenAdded(cti, clientId, claims);
+            }
+        }
+    }
+
+    @Override
+    public String getClient4Cti(String cti) throws AceException {
+        TokenWriteBehind wb = writeBehind;
+        if (wb != null) {
+            String clientId = wb.getPendingClient(cti);
+            if (clientId != null) {
+                return clientId;
+            }
+        }
+        if (connections == null) {
+            return super.getClient4Cti(cti);
+        }
+        return pooled("read the client of a token", conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT " + clientIdColumn
+                    + " FROM " + cti2clientTable + " WHERE " + ctiColumn + " = ?;")) {
+                stmt.setString(1, cti);
+                try (ResultSet result = stmt.executeQuery()) {
+                    return result.next() ? result.getString(clientIdColumn) : null;
+                }
+            }
+        });
+    }
+
+    @Override
+    public Set<String> getCtis4Client(String clientId) throws AceException {
+        Set<String> ctis;
+        if (connections == null) {
+            ctis = new HashSet<>(super.getCtis4Client(clientId));
+        } else {
+            ctis = pooled("read the tokens of a client", conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement("SELECT " + ctiColumn
+                        + " FROM " + cti2clientTable + " WHERE " + clientIdColumn + " = ?;")) {
+                    stmt.setString(1, clientId);
+                    Set<String> found = new HashSet<>();
+                    try (ResultSet result = stmt.executeQuery()) {
+                        while (result.next()) {
+                            found.add(result.getString(ctiColumn));
+                        }
+                    }
+                    return found;
+                }
+            });
+        }
+        TokenWriteBehind wb = writeBehind;
+        if (wb != null) {
+            ctis.addAll(wb.getPendingCtis(clientId));
+        }
+        return ctis;
+    }
+
+    @Override
+    public void saveCtiCounter(Long cti) throws AceException {
+        TokenWriteBehind wb = writeBehind;
+        if (wb == null && connections == null) {
+            super.saveCtiCounter(cti);
+        } else if (wb == null) {
+            pooled("save the CTI counter", conn -> {
+                try (PreparedStatement stmt = conn.prepareStatement("UPDATE " + ctiCounterTable
+                        + " SET " + ctiCounterColumn + " = ?;")) {
+                    stmt.setLong(1, cti);
+                    return stmt.executeUpdate();
+                }
+            });
+        } else {
+            wb.saveCtiCounter(cti);
+        }
+    }
+
+    @Override
+    public Long getCtiCounter() throws AceException {
+        TokenWriteBehind wb = writeBehind;
+        if (wb != null) {
+            Long ctiCounter = wb.getPendingCtiCounter();
+            if (ctiCounter != null) {
+                return ctiCounter;
+            }
+        }
+        if (connections == null) {
+            return super.getCtiCounter();
+        }
+        Long ctiCounter = pooled("read the CTI counter", conn -> {
+            try (Statement stmt = conn.createStatement();
+                 ResultSet result = stmt.executeQuery("SELECT " + ctiCounterColumn
+                         + " FROM " + ctiCounterTable + ";")) {
+                return result.next() ? result.getLong(ctiCounterColumn) : null;
+            }
+        });
+        return ctiCounter == null ? super.getCtiCounter() : ctiCounter;
+    }
+
+    /**
+     * Runs an operation on a connection borrowed from the pool
+     *
+     * @param action the action, for the error message
+     * @param op     the operation
+     * @return the result of the operation
+     * @throws AceException if the operation fails
+     */
+    private <T> T pooled(String action, PooledOperation<T> op) throws AceException {
+        try (Connection conn = connections.open()) {
+            return op.run(conn);
+        } catch (SQLException e) {
+            throw new AceException("Unable to " + action + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package eu.sifishome.db;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Pool of connections to the database of the AS.
+ * <p>
+ * Physical connections are opened through a {@link ConnectionFactory},
+ * so that the pool can be used with any adapter. Besides the metrics of
+ * the underlying pool (active, idle and total connections, threads
+ * waiting), the time spent waiting for a connection is recorded.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    public static final int DEFAULT_POOL_SIZE = 10;
+    public static final long DEFAULT_VALIDATION_TIMEOUT = 1000L;
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 250;
+
+    /**
+     * Opens a new physical connection to the database
+     */
+    public interface ConnectionFactory {
+        Connection open() throws SQLException;
+    }
+
+    private final HikariDataSource dataSource;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Creates a new pool
+     *
+     * @param name              the name of the pool
+     * @param factory           the factory of the physical connections
+     * @param poolSize          the maximum number of connections
+     * @param validationTimeout the maximum time (in milliseconds) to wait
+     *                          for a connection to be validated as alive
+     */
+    public ConnectionPool(String name, ConnectionFactory factory, int poolSize, long validationTimeout) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(name);
+        config.setDataSource(new FactoryDataSource(factory));
+        config.setMaximumPoolSize(poolSize);
+        // connections are opened on demand, rather than all at once
+        config.setMinimumIdle(Math.min(1, poolSize));
+        config.setValidationTimeout(validationTimeout);
+        this.dataSource = new HikariDataSource(config);
+    }
+
+    /**
+     * Borrows a connection from the pool. Closing the connection
+     * returns it to the pool.
+     *
+     * @return a connection to the database
+     * @throws SQLException if no connection is available within the timeout
+     */
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return dataSource.getConnection();
+        } finally {
+            long waited = System.nanoTime() - start;
+            requests.increment();
+            waitNanos.add(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+        }
+    }
+
+    /**
+     * @return the number of connections currently in use
+     */
+    public int getActiveConnections() {
+        HikariPoolMXBean mx = dataSource.getHikariPoolMXBean();
+        return mx == null ? 0 : mx.getActiveConnections();
+    }
+
+    /**
+     * @return the number of connections currently idle in the pool
+     */
+    public int getIdleConnections() {
+        HikariPoolMXBean mx = dataSource.getHikariPoolMXBean();
+        return mx == null ? 0 : mx.getIdleConnections();
+    }
+
+    /**
+     * @return the number of threads currently waiting for a connection
+     */
+    public int getThreadsAwaitingConnection() {
+        HikariPoolMXBean mx = dataSource.getHikariPoolMXBean();
+        return mx == null ? 0 : mx.getThreadsAwaitingConnection();
+    }
+
+    /**
+     * @return the number of connections borrowed since the pool was created
+     */
+    public long getConnectionRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return the average time (in microseconds) spent waiting for a connection
+     */
+    public long getAverageWaitMicros() {
+        long n = requests.sum();
+        return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(waitNanos.sum() / n);
+    }
+
+    /**
+     * @return the maximum time (in microseconds) spent waiting for a connection
+     */
+    public long getMaxWaitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return dataSource.getPoolName() + ": "
+                + getActiveConnections() + " active, "
+                + getIdleConnections() + " idle, "
+                + getThreadsAwaitingConnection() + " waiting, "
+                + getConnectionRequests() + " requests, "
+                + "wait avg " + getAverageWaitMicros() + " us, "
+                + "max " + getMaxWaitMicros() + " us";
+    }
+
+    @Override
+    public void close() {
+        dataSource.close();
+    }
+
+    /**
+     * Minimal DataSource that opens connections through a ConnectionFactory
+     */
+    private static class FactoryDataSource implements DataSource {
+
+        private final ConnectionFactory factory;
+        private PrintWriter logWriter;
+        private int loginTimeout;
+
+        FactoryDataSource(ConnectionFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            return factory.open();
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return factory.open();
+        }
+
+        @Override
+        public PrintWriter getLogWriter() {
+            return logWriter;
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) {
+            this.logWriter = out;
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) {
+            this.loginTimeout = seconds;
+        }
+
+        @Override
+        public int getLoginTimeout() {
+            return loginTimeout;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            throw new SQLException("Not a wrapper");
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) {
+            return false;
+        }
+    }
+}
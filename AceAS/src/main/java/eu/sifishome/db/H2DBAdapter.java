@@ -0,0 +1,257 @@
+package eu.sifishome.db;
+
+import se.sics.ace.AceException;
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Adapter for an in-memory H2 database, optionally snapshotted to disk.
+ * <p>
+ * The adapter extends the (pooled) MySQL one and runs the H2 engine in MySQL
+ * compatibility mode, so that the tables and queries of the SQLConnector
+ * (and thus of the CoapDBConnector) are exactly the same as with MySQL.
+ * The few administrative statements H2 does not understand (databases,
+ * users and grants) are translated on the fly.
+ */
+public class H2DBAdapter extends PooledMySQLDBAdapter {
+
+    /**
+     * The administrator of the in-memory database, i.e., its creator
+     */
+    public static final String ROOT_USER = "sa";
+    public static final String ROOT_PASSWORD = "";
+
+    private static final String DEFAULT_URL = "jdbc:h2:mem:aceas";
+    private static final String URL_OPTIONS = ";DB_CLOSE_DELAY=-1;MODE=MySQL;DATABASE_TO_LOWER=TRUE";
+
+    /**
+     * Marker for statements that have no H2 equivalent and must be skipped
+     */
+    private static final String SKIP = "";
+
+    private static final List<Rule> rules = new ArrayList<>();
+
+    static {
+        rules.add(new Rule("^\\s*CREATE\\s+DATABASE\\s+(IF\\s+NOT\\s+EXISTS\\s+)?`?(\\w+)`?.*$",
+                "CREATE SCHEMA IF NOT EXISTS $2"));
+        rules.add(new Rule("^\\s*DROP\\s+DATABASE\\s+(IF\\s+EXISTS\\s+)?`?(\\w+)`?.*$",
+                "DROP SCHEMA IF EXISTS $2 CASCADE"));
+        rules.add(new Rule("^\\s*CREATE\\s+USER\\s+(IF\\s+NOT\\s+EXISTS\\s+)?'?(\\w+)'?(@'[^']*')?"
+                + "\\s+IDENTIFIED\\s+BY\\s+'([^']*)'.*$",
+                "CREATE USER IF NOT EXISTS $2 PASSWORD '$4' ADMIN"));
+        rules.add(new Rule("^\\s*DROP\\s+USER\\s+(IF\\s+EXISTS\\s+)?'?(\\w+)'?(@'[^']*')?.*$",
+                "DROP USER IF EXISTS $2"));
+        rules.add(new Rule("^\\s*USE\\s+`?(\\w+)`?.*$",
+                "SET SCHEMA $1"));
+        // users are created as administrators, so grants are not needed
+        rules.add(new Rule("^\\s*(GRANT|REVOKE|FLUSH)\\s.*$", SKIP));
+        rules.add(new Rule("\\s+(DEFAULT\\s+)?(CHARACTER\\s+SET|CHARSET)\\s*=?\\s*\\w+", ""));
+        rules.add(new Rule("\\s+COLLATE\\s*=?\\s*\\w+", ""));
+    }
+
+    private final File snapshotFile;
+
+    private String h2Url = DEFAULT_URL;
+
+    /**
+     * Creates an adapter for a purely in-memory database
+     */
+    public H2DBAdapter() {
+        this(null);
+    }
+
+    /**
+     * Creates an adapter for an in-memory database
+     *
+     * @param snapshotFile the file where the database is saved when calling
+     *                     {@link #snapshot(String, String)}, or null to keep
+     *                     the database in memory only
+     */
+    public H2DBAdapter(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    @Override
+    public void setParams(String user, String pwd, String dbName, String dbUrl) {
+        super.setParams(user, pwd, dbName, null);
+        if (dbUrl != null && dbUrl.startsWith("jdbc:h2:")) {
+            this.h2Url = dbUrl;
+        }
+    }
+
+    @Override
+    public Connection getRootConnection(String rootUser, String rootPwd) throws SQLException {
+        return translating(DriverManager.getConnection(h2Url + URL_OPTIONS, rootUser, rootPwd));
+    }
+
+    @Override
+    protected Connection openDBConnection() throws SQLException {
+        return translating(DriverManager.getConnection(
+                h2Url + URL_OPTIONS + ";SCHEMA=" + this.schema
+                        + ";QUERY_CACHE_SIZE=" + this.statementCacheSize,
+                this.dbUser, this.dbPwd));
+    }
+
+    /**
+     * @return the file where the database is saved, or null if there is none
+     */
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * Saves the content of the database in the snapshot file, if any.
+     *
+     * @param rootUser the administrator of the database
+     * @param rootPwd  the password of the administrator
+     * @throws AceException if the snapshot cannot be written
+     */
+    public void snapshot(String rootUser, String rootPwd) throws AceException {
+        if (snapshotFile == null) {
+            return;
+        }
+        try (Connection rootConn = getRootConnection(rootUser, rootPwd);
+             Statement stmt = rootConn.createStatement()) {
+            stmt.execute("SCRIPT TO '" + snapshotFile.getAbsolutePath().replace("'", "''")
+                    + "' SCHEMA " + this.schema);
+        } catch (SQLException e) {
+            throw new AceException("Unable to write the database snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads the content of the snapshot file, if any, into the database.
+     * The user of the database must already exist.
+     *
+     * @param rootUser the administrator of the database
+     * @param rootPwd  the password of the administrator
+     * @return true if a snapshot was loaded
+     * @throws AceException if the snapshot cannot be loaded
+     */
+    public boolean restore(String rootUser, String rootPwd) throws AceException {
+        if (snapshotFile == null || !snapshotFile.isFile()) {
+            return false;
+        }
+        try (Connection rootConn = getRootConnection(rootUser, rootPwd);
+             Statement stmt = rootConn.createStatement()) {
+            stmt.execute("DROP SCHEMA IF EXISTS " + this.schema + " CASCADE");
+            stmt.execute("RUNSCRIPT FROM '" + snapshotFile.getAbsolutePath().replace("'", "''") + "'");
+        } catch (SQLException e) {
+            throw new AceException("Unable to load the database snapshot: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Translates a MySQL statement into the equivalent H2 statement.
+     *
+     * @param sql the MySQL statement
+     * @return the H2 statement, or an empty string if the statement
+     * has no effect on H2 and must be skipped
+     */
+    public static String translate(String sql) {
+        String translated = sql;
+        for (Rule rule : rules) {
+            translated = rule.apply(translated);
+            if (translated.equals(SKIP)) {
+                return SKIP;
+            }
+        }
+        return translated;
+    }
+
+    /**
+     * Wraps a connection so that every statement it executes or prepares
+     * is translated from MySQL to H2 first.
+     */
+    private static Connection translating(Connection conn) {
+        return (Connection) Proxy.newProxyInstance(H2DBAdapter.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    if (isSqlMethod(method, args)) {
+                        String sql = translate((String) args[0]);
+                        // prepare a harmless statement in place of a skipped one
+                        args[0] = sql.equals(SKIP) ? "SET @SKIPPED = 0" : sql;
+                    }
+                    Object result = invoke(conn, method, args);
+                    if (result instanceof Statement && method.getName().equals("createStatement")) {
+                        return translating((Statement) result);
+                    }
+                    return result;
+                });
+    }
+
+    private static Statement translating(Statement stmt) {
+        return (Statement) Proxy.newProxyInstance(H2DBAdapter.class.getClassLoader(),
+                new Class<?>[]{Statement.class},
+                (proxy, method, args) -> {
+                    if (isSqlMethod(method, args)) {
+                        String sql = translate((String) args[0]);
+                        if (sql.equals(SKIP)) {
+                            return skippedResult(method);
+                        }
+                        args[0] = sql;
+                    }
+                    return invoke(stmt, method, args);
+                });
+    }
+
+    /**
+     * @return true if the method takes an SQL string as first argument
+     */
+    private static boolean isSqlMethod(Method method, Object[] args) {
+        if (args == null || args.length == 0 || !(args[0] instanceof String)) {
+            return false;
+        }
+        String name = method.getName();
+        return name.startsWith("execute") || name.equals("addBatch")
+                || name.startsWith("prepare") || name.equals("nativeSQL");
+    }
+
+    private static Object skippedResult(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static class Rule {
+        private final Pattern pattern;
+        private final String replacement;
+
+        Rule(String regex, String replacement) {
+            this.pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+            this.replacement = replacement;
+        }
+
+        String apply(String sql) {
+            Matcher m = pattern.matcher(sql);
+            return m.find() ? m.replaceAll(replacement) : sql;
+        }
+    }
+}
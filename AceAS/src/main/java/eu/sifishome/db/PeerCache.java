@@ -0,0 +1,166 @@
+package eu.sifishome.db;
+
+import se.sics.ace.AceException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache for the registration data of clients and
+ * resource servers, e.g., profiles, key types, and keys.
+ * <p>
+ * Such data is written once when a peer is added, so the cache is
+ * invalidated as a whole whenever a peer is added or removed. Values
+ * loaded concurrently with an invalidation are not cached.
+ * <p>
+ * Some keys come from the requests, e.g., the requested audience and
+ * scope, so the number of entries is capped, and the least recently
+ * used entries are evicted first.
+ */
+public class PeerCache {
+
+    /**
+     * Loads a value from the database on a cache miss
+     */
+    public interface Loader<T> {
+        T load() throws AceException;
+    }
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    // marks a cached null value
+    private static final Object NULL = new Object();
+
+    // in access order, guarded by itself
+    private final Map<String, Object> entries;
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public PeerCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries the maximum number of cached values
+     */
+    public PeerCache(int maxEntries) {
+        this.entries = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                if (size() > maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached value for the key, loading it if needed.
+     *
+     * @param key    the key, see {@link #key(String, Object...)}
+     * @param loader the loader of the value
+     * @return the value
+     * @throws AceException if loading the value fails
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String key, Loader<T> loader) throws AceException {
+        Object value;
+        synchronized (entries) {
+            value = entries.get(key);
+        }
+        if (value != null) {
+            hits.increment();
+            return value == NULL ? null : (T) value;
+        }
+        misses.increment();
+        long gen = generation.get();
+        T loaded = loader.load();
+        synchronized (entries) {
+            // unless an invalidation happened in the meantime
+            if (generation.get() == gen) {
+                entries.put(key, loaded == null ? NULL : loaded);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Removes all the cached values
+     */
+    public void invalidate() {
+        synchronized (entries) {
+            generation.incrementAndGet();
+            entries.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the ratio of lookups served from the cache
+     */
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /**
+     * Builds a cache key from the name of a lookup and its arguments.
+     * Sets are sorted, so that the key does not depend on their iteration order.
+     *
+     * @param lookup the name of the lookup
+     * @param args   the arguments of the lookup
+     * @return the key
+     */
+    public static String key(String lookup, Object... args) {
+        StringBuilder sb = new StringBuilder(lookup);
+        for (Object arg : args) {
+            sb.append('\u0000');
+            if (arg instanceof Set) {
+                Set<String> sorted = new TreeSet<>();
+                for (Object o : (Set<?>) arg) {
+                    sorted.add(String.valueOf(o));
+                }
+                sb.append(sorted);
+            } else {
+                sb.append(arg);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "Peer cache: " + size() + " entries, "
+                + getHits() + " hits, "
+                + getMisses() + " misses, "
+                + getEvictions() + " evictions, "
+                + String.format("hit rate %.2f", getHitRate());
+    }
+}
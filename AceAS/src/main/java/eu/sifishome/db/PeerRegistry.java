@@ -0,0 +1,206 @@
+package eu.sifishome.db;
+
+import se.sics.ace.AceException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of the peers set up by this AS, stored next to the tables of
+ * the ACE library.
+ * <p>
+ * It keeps the data that the ACE library does not persist, i.e., the
+ * OSCORE identity of each peer, together with a fingerprint of the
+ * registration options of the peer. This allows a restarted AS to reuse
+ * the content of the database and to detect the peers whose options changed.
+ * The version of the schema is stored too, so that a restarted AS does not
+ * reuse a database created by an incompatible version.
+ */
+public class PeerRegistry {
+
+    /**
+     * Version of the schema of the database. Increase it whenever
+     * the tables of the AS or of the ACE library change.
+     */
+    public static final int SCHEMA_VERSION = 1;
+
+    public static final String schemaTable = "AceEntitiesSchema";
+    public static final String versionColumn = "version";
+    public static final String peersTable = "AceEntitiesPeers";
+    public static final String nameColumn = "name";
+    public static final String typeColumn = "peerType";
+    public static final String identityColumn = "identity";
+    public static final String fingerprintColumn = "fingerprint";
+
+    public static final String CLIENT = "C";
+    public static final String RESOURCE_SERVER = "R";
+
+    /**
+     * A registered peer
+     */
+    public static class Entry {
+        private final String type;
+        private final String identity;
+        private final String fingerprint;
+
+        Entry(String type, String identity, String fingerprint) {
+            this.type = type;
+            this.identity = identity;
+            this.fingerprint = fingerprint;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getIdentity() {
+            return identity;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+    }
+
+    private final ConnectionPool.ConnectionFactory connections;
+
+    /**
+     * @param connections the source of the connections to the database of the AS
+     */
+    public PeerRegistry(ConnectionPool.ConnectionFactory connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * Creates the tables of the registry, if they do not exist,
+     * and records the current schema version.
+     *
+     * @throws AceException if the tables cannot be created
+     */
+    public void create() throws AceException {
+        try (Connection conn = connections.open();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + schemaTable + " ("
+                    + versionColumn + " int NOT NULL);");
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + peersTable + " ("
+                    + nameColumn + " varchar(255) NOT NULL PRIMARY KEY, "
+                    + typeColumn + " char(1) NOT NULL, "
+                    + identityColumn + " varchar(255), "
+                    + fingerprintColumn + " varchar(64) NOT NULL);");
+            stmt.execute("DELETE FROM " + schemaTable + ";");
+            stmt.execute("INSERT INTO " + schemaTable + " VALUES (" + SCHEMA_VERSION + ");");
+        } catch (SQLException e) {
+            throw new AceException("Unable to create the peer registry: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the schema version of the database, or null if the database
+     * does not exist or was not created by this AS
+     */
+    public Integer getSchemaVersion() {
+        try (Connection conn = connections.open();
+             Statement stmt = conn.createStatement();
+             ResultSet result = stmt.executeQuery("SELECT " + versionColumn
+                     + " FROM " + schemaTable + ";")) {
+            return result.next() ? result.getInt(1) : null;
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the registered peers, by name
+     * @throws AceException if the registry cannot be read
+     */
+    public Map<String, Entry> load() throws AceException {
+        Map<String, Entry> peers = new HashMap<>();
+        try (Connection conn = connections.open();
+             Statement stmt = conn.createStatement();
+             ResultSet result = stmt.executeQuery("SELECT " + nameColumn + ", "
+                     + typeColumn + ", " + identityColumn + ", " + fingerprintColumn
+                     + " FROM " + peersTable + ";")) {
+            while (result.next()) {
+                peers.put(result.getString(1),
+                        new Entry(result.getString(2), result.getString(3), result.getString(4)));
+            }
+        } catch (SQLException e) {
+            throw new AceException("Unable to read the peer registry: " + e.getMessage());
+        }
+        return peers;
+    }
+
+    /**
+     * Registers a peer, replacing the previous registration with the same name.
+     *
+     * @param name        the name of the peer
+     * @param type        {@link #CLIENT} or {@link #RESOURCE_SERVER}
+     * @param identity    the OSCORE identity of the peer
+     * @param fingerprint the fingerprint of the options of the peer,
+     *                    see {@link #fingerprint(Object...)}
+     * @throws AceException if the peer cannot be registered
+     */
+    public void put(String name, String type, String identity, String fingerprint)
+            throws AceException {
+        try (Connection conn = connections.open()) {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try (PreparedStatement delete = conn.prepareStatement("DELETE FROM "
+                    + peersTable + " WHERE " + nameColumn + " = ?;");
+                 PreparedStatement insert = conn.prepareStatement("INSERT INTO "
+                         + peersTable + " VALUES (?, ?, ?, ?);")) {
+                delete.setString(1, name);
+                delete.execute();
+                insert.setString(1, name);
+                insert.setString(2, type);
+                insert.setString(3, identity);
+                insert.setString(4, fingerprint);
+                insert.execute();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new AceException("Unable to register peer " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Computes the fingerprint of the registration options of a peer.
+     *
+     * @param options the options
+     * @return the hex-encoded SHA-256 digest of the options
+     */
+    public static String fingerprint(Object... options) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (Object option : options) {
+            String value = option instanceof byte[]
+                    ? Base64.getEncoder().encodeToString((byte[]) option)
+                    : String.valueOf(option);
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
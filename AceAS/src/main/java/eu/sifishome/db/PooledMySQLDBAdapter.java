@@ -0,0 +1,119 @@
+package eu.sifishome.db;
+
+import se.sics.ace.examples.MySQLDBAdapter;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * MySQL adapter whose database connections are served by a {@link ConnectionPool}.
+ * <p>
+ * Administrative connections (see getRootConnection) are not pooled.
+ * The pool opens connections on demand, up to its maximum size.
+ * Physical connections enable the prepared statement cache of the driver,
+ * so that statements prepared on pooled connections are reused.
+ */
+public class PooledMySQLDBAdapter extends MySQLDBAdapter {
+
+    private static final String DEFAULT_MYSQL_URL = "jdbc:mysql://localhost:3306";
+
+    protected String dbUser;
+    protected String dbPwd;
+    protected String schema;
+    private String serverUrl = DEFAULT_MYSQL_URL;
+
+    private int poolSize = ConnectionPool.DEFAULT_POOL_SIZE;
+    private long validationTimeout = ConnectionPool.DEFAULT_VALIDATION_TIMEOUT;
+    protected int statementCacheSize = ConnectionPool.DEFAULT_STATEMENT_CACHE_SIZE;
+
+    private ConnectionPool pool = null;
+
+    @Override
+    public void setParams(String user, String pwd, String dbName, String dbUrl) {
+        super.setParams(user, pwd, dbName, dbUrl);
+        this.dbUser = user;
+        this.dbPwd = pwd;
+        this.schema = dbName;
+        if (dbUrl != null) {
+            this.serverUrl = dbUrl;
+        }
+    }
+
+    /**
+     * Configures the pool. It must be called before the first
+     * connection to the database is requested.
+     *
+     * @param poolSize           the maximum number of pooled connections,
+     *                           or 0 to disable pooling
+     * @param validationTimeout  the maximum time (in milliseconds) to wait
+     *                           for a connection to be validated as alive
+     * @param statementCacheSize the number of prepared statements cached
+     *                           for each connection
+     */
+    public void setPoolSettings(int poolSize, long validationTimeout, int statementCacheSize) {
+        this.poolSize = poolSize;
+        this.validationTimeout = validationTimeout;
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    @Override
+    public Connection getDBConnection() throws SQLException {
+        if (poolSize <= 0) {
+            return openDBConnection();
+        }
+        synchronized (this) {
+            if (pool == null) {
+                pool = new ConnectionPool(schema + "-pool", this::openDBConnection,
+                        poolSize, validationTimeout);
+            }
+        }
+        return pool.getConnection();
+    }
+
+    /**
+     * @return true if the connections are served by a pool
+     */
+    public boolean isPooled() {
+        return poolSize > 0;
+    }
+
+    /**
+     * Opens a new physical connection to the database.
+     *
+     * @return the connection
+     * @throws SQLException if the connection cannot be opened
+     */
+    protected Connection openDBConnection() throws SQLException {
+        Properties props = new Properties();
+        props.setProperty("user", dbUser);
+        props.setProperty("password", dbPwd);
+        if (statementCacheSize > 0) {
+            props.setProperty("cachePrepStmts", "true");
+            props.setProperty("useServerPrepStmts", "true");
+            props.setProperty("prepStmtCacheSize", String.valueOf(statementCacheSize));
+            props.setProperty("prepStmtCacheSqlLimit", "2048");
+        }
+        return DriverManager.getConnection(serverUrl + "/" + schema, props);
+    }
+
+    /**
+     * @return the pool, or null if no connection has been requested yet
+     * or pooling is disabled
+     */
+    public synchronized ConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Closes all the pooled connections. A new pool is created
+     * when a connection is requested again.
+     */
+    public synchronized void closePool() {
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package eu.sifishome.db;
+
+import com.upokecenter.cbor.CBORObject;
+import se.sics.ace.AceException;
+import se.sics.ace.Constants;
+import se.sics.ace.TimeProvider;
+import se.sics.ace.as.DBConnector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deletes the expired tokens in the background, a bounded number at a time.
+ * <p>
+ * The expiration of each token is queued when the token is issued (see
+ * {@link AceDBConnector.TokenListener}). Every period, at most 'budget'
+ * expired tokens are deleted, in order of expiration, so that a burst of
+ * expirations is spread over several periods instead of stalling the
+ * database. Deleting a token notifies the other listeners, e.g., the
+ * session index, which drop their state about it.
+ * <p>
+ * Only the token rows are reclaimed. The sessions that the UCS keeps for
+ * the expired tokens are not ended, and the policy files of the grants
+ * are left to the PAP.
+ */
+public class TokenReclaimer implements AceDBConnector.TokenListener, AutoCloseable {
+
+    public static final long DEFAULT_PERIOD = 60000L;
+    public static final int DEFAULT_BUDGET = 1000;
+
+    private static class Expiration implements Comparable<Expiration> {
+        final String cti;
+        final long exp;
+
+        Expiration(String cti, long exp) {
+            this.cti = cti;
+            this.exp = exp;
+        }
+
+        @Override
+        public int compareTo(Expiration o) {
+            return Long.compare(exp, o.exp);
+        }
+    }
+
+    private final DBConnector db;
+    private final TimeProvider time;
+    private final int budget;
+
+    // expirations of the tokens not deleted yet, by CTI
+    private final Map<String, Long> expirations = new ConcurrentHashMap<>();
+    // the same expirations, in order. Entries of deleted tokens are skipped when polled
+    private final PriorityQueue<Expiration> queue = new PriorityQueue<>();
+
+    private final ScheduledExecutorService executor;
+    private final LongAdder reclaimed = new LongAdder();
+    private final LongAdder runs = new LongAdder();
+
+    /**
+     * @param db     the database connector
+     * @param time   the time provider of the AS
+     * @param period the period of the reclamation, in milliseconds
+     * @param budget the maximum number of tokens deleted in a period
+     */
+    public TokenReclaimer(DBConnector db, TimeProvider time, long period, int budget) {
+        this.db = db;
+        this.time = time;
+        this.budget = budget;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "token-reclaimer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor.scheduleWithFixedDelay(this::reclaim, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deletes the expired tokens, up to the budget
+     *
+     * @return the number of deleted tokens
+     */
+    public int reclaim() {
+        runs.increment();
+        long now = time.getCurrentTime();
+        List<String> expired = new ArrayList<>();
+        while (expired.size() < budget) {
+            Expiration e;
+            synchronized (queue) {
+                e = queue.peek();
+                if (e == null || e.exp > now) {
+                    break;
+                }
+                queue.poll();
+            }
+            // unless already deleted, or issued again with another expiration
+            if (expirations.remove(e.cti, e.exp)) {
+                expired.add(e.cti);
+            }
+        }
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        int deleted = delete(expired);
+        reclaimed.add(deleted);
+        return deleted;
+    }
+
+    /**
+     * Deletes the expired tokens, in one go if the database supports it, so
+     * that the listeners, e.g., the TRL cache, are notified once per period
+     */
+    private int delete(List<String> expired) {
+        if (db instanceof AceDBConnector) {
+            return ((AceDBConnector) db).deleteTokens(expired).size();
+        }
+        int deleted = 0;
+        for (String cti : expired) {
+            try {
+                db.deleteToken(cti);
+                deleted++;
+            } catch (AceException e) {
+                System.err.println("Unable to delete expired token " + cti + ": " + e.getMessage());
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the number of tokens waiting to expire
+     */
+    public int pending() {
+        return expirations.size();
+    }
+
+    public long getReclaimed() {
+        return reclaimed.sum();
+    }
+
+    @Override
+    public void tokenAdded(String cti, String clientId, Map<Short, CBORObject> claims) {
+        CBORObject exp = claims == null ? null : claims.get(Constants.EXP);
+        if (exp == null) {
+            return;
+        }
+        long expiration = exp.AsInt64Value();
+        expirations.put(cti, expiration);
+        synchronized (queue) {
+            queue.add(new Expiration(cti, expiration));
+        }
+    }
+
+    @Override
+    public void tokenRemoved(String cti) {
+        expirations.remove(cti);
+    }
+
+    @Override
+    public void tokensExpired(long now) {
+        expirations.values().removeIf(exp -> exp <= now);
+    }
+
+    /**
+     * Stops the reclamation, waiting for the pending one to complete
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Token reclamation: " + runs.sum() + " runs, " + reclaimed.sum()
+                + " expired tokens deleted, " + expirations.size() + " tokens pending";
+    }
+}
@@ -0,0 +1,540 @@
+package eu.sifishome.db;
+
+import com.upokecenter.cbor.CBORObject;
+import se.sics.ace.AceException;
+import se.sics.ace.as.DBConnector;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind stage for the tokens issued by the AS.
+ * <p>
+ * The claims of the issued tokens, the token-to-client mapping, and the
+ * CTI counter are written by a flusher thread in batches, using multi-row
+ * statements within one transaction. Until they are written, they are
+ * served from memory, so that readers always see the tokens that have
+ * been issued.
+ * <p>
+ * The Token endpoint saves the CTI counter, then adds the claims of the
+ * token, then its client. The counter and the claims are only staged, and
+ * the token is queued as a single unit when its client is added, so that
+ * all the rows of a token are written in the same batch, together with
+ * the latest CTI counter. Claims whose client is never added are written
+ * when the stage is closed.
+ * <p>
+ * With {@link Durability#GROUP_COMMIT}, the thread issuing the token waits
+ * once, when adding the client, until the batch containing the token is
+ * committed, so that no token leaves the AS before being persisted. With {@link Durability#ASYNC}, it returns
+ * immediately, and the tokens issued within the last flush interval are
+ * lost if the AS crashes.
+ * <p>
+ * A batch that cannot be written is retried, waiting twice as long after
+ * each failure. After the last attempt, its tokens are dropped from memory
+ * and reported as lost, and the issuers waiting for it get an error.
+ */
+public class TokenWriteBehind implements AutoCloseable {
+
+    public enum Durability {
+        /**
+         * Tokens are written synchronously, one by one (no write-behind)
+         */
+        SYNC,
+        /**
+         * Tokens are written in batches, and the issuer waits for the commit
+         */
+        GROUP_COMMIT,
+        /**
+         * Tokens are written in batches, and the issuer does not wait
+         */
+        ASYNC
+    }
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 10L;
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_RETRY_BACKOFF = 100L;
+    public static final long MAX_RETRY_BACKOFF = 5000L;
+
+    // a token, i.e., its claims and its client
+    private static class Op {
+        final String cti;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Op(String cti) {
+            this.cti = cti;
+        }
+    }
+
+    private final ConnectionPool.ConnectionFactory connections;
+    private final Durability durability;
+    private final long flushInterval;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long retryBackoff;
+
+    private final BlockingQueue<Op> queue;
+    private final Map<String, Map<Short, CBORObject>> pendingClaims = new ConcurrentHashMap<>();
+    private final Map<String, String> pendingClients = new ConcurrentHashMap<>();
+    private final AtomicReference<Long> pendingCtiCounter = new AtomicReference<>();
+
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Thread flusher;
+    private volatile boolean running = true;
+    // the batch the flusher was writing when it was stopped, read by close() after joining it
+    private List<Op> unwritten = Collections.emptyList();
+
+    private final LongAdder tokens = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+
+    /**
+     * Creates and starts the write-behind stage
+     *
+     * @param connections   the source of the connections used to write
+     * @param durability    the durability mode
+     * @param flushInterval the maximum time (in milliseconds) a token
+     *                      waits for other tokens to join its batch
+     * @param queueCapacity the maximum number of queued tokens. When the
+     *                      queue is full, the issuer waits for a flush
+     * @param batchSize     the maximum number of tokens written in a batch
+     */
+    public TokenWriteBehind(ConnectionPool.ConnectionFactory connections, Durability durability,
+                            long flushInterval, int queueCapacity, int batchSize) {
+        this(connections, durability, flushInterval, queueCapacity, batchSize,
+                DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_BACKOFF);
+    }
+
+    /**
+     * Creates and starts the write-behind stage
+     *
+     * @param connections   the source of the connections used to write
+     * @param durability    the durability mode
+     * @param flushInterval the maximum time (in milliseconds) a token
+     *                      waits for other tokens to join its batch
+     * @param queueCapacity the maximum number of queued tokens. When the
+     *                      queue is full, the issuer waits for a flush
+     * @param batchSize     the maximum number of tokens written in a batch
+     * @param maxAttempts   the number of times a batch is written before giving up
+     * @param retryBackoff  the time (in milliseconds) to wait before the first
+     *                      retry, doubled at each retry
+     */
+    public TokenWriteBehind(ConnectionPool.ConnectionFactory connections, Durability durability,
+                            long flushInterval, int queueCapacity, int batchSize,
+                            int maxAttempts, long retryBackoff) {
+        this.connections = connections;
+        this.durability = durability;
+        this.flushInterval = flushInterval;
+        this.batchSize = batchSize;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryBackoff = retryBackoff;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        this.flusher = new Thread(this::flushLoop, "token-write-behind");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Stages the claims of a newly issued token. They are queued with the
+     * client of the token, see {@link #addCti2Client(String, String)}.
+     *
+     * @param cti    the token identifier, Base64-encoded
+     * @param claims the claims of the token
+     * @throws AceException if the stage is closed
+     */
+    public void addToken(String cti, Map<Short, CBORObject> claims) throws AceException {
+        checkRunning();
+        pendingClaims.put(cti, new HashMap<>(claims));
+        tokens.increment();
+    }
+
+    /**
+     * Queues a token, with the client it was issued to and its staged claims.
+     * With {@link Durability#GROUP_COMMIT}, waits until the token is committed.
+     *
+     * @param cti      the token identifier, Base64-encoded
+     * @param clientId the client identifier
+     * @throws AceException if the token cannot be persisted
+     */
+    public void addCti2Client(String cti, String clientId) throws AceException {
+        checkRunning();
+        pendingClients.put(cti, clientId);
+        submit(new Op(cti));
+    }
+
+    /**
+     * Stages the new value of the CTI counter. Only the latest value is
+     * written, with the next batch.
+     *
+     * @param ctiCounter the value of the counter
+     * @throws AceException if the stage is closed
+     */
+    public void saveCtiCounter(Long ctiCounter) throws AceException {
+        checkRunning();
+        pendingCtiCounter.set(ctiCounter);
+    }
+
+    /**
+     * @return the claims of a token that has not been written yet, or null
+     */
+    public Map<Short, CBORObject> getPendingClaims(String cti) {
+        Map<Short, CBORObject> claims = pendingClaims.get(cti);
+        return claims == null ? null : new HashMap<>(claims);
+    }
+
+    /**
+     * @return the client of a token that has not been written yet, or null
+     */
+    public String getPendingClient(String cti) {
+        return pendingClients.get(cti);
+    }
+
+    /**
+     * @return the tokens of a client that have not been written yet
+     */
+    public Set<String> getPendingCtis(String clientId) {
+        Set<String> ctis = new HashSet<>();
+        for (Map.Entry<String, String> e : pendingClients.entrySet()) {
+            if (e.getValue().equals(clientId)) {
+                ctis.add(e.getKey());
+            }
+        }
+        return ctis;
+    }
+
+    /**
+     * @return the CTI counter that has not been written yet, or null
+     */
+    public Long getPendingCtiCounter() {
+        return pendingCtiCounter.get();
+    }
+
+    /**
+     * @return the number of tokens dropped because they could not be written
+     */
+    public long getLostTokens() {
+        return lost.sum();
+    }
+
+    /**
+     * Discards the staged and queued rows of a token, e.g., because the
+     * token is being deleted. Rows already written are not affected.
+     *
+     * @param cti the token identifier, Base64-encoded
+     */
+    public void forget(String cti) {
+        flushLock.lock();
+        try {
+            pendingClaims.remove(cti);
+            pendingClients.remove(cti);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Writes all the queued tokens, and the CTI counter, in the calling
+     * thread. Used before operations, such as the purge of expired tokens,
+     * that must see every issued token in the database.
+     *
+     * @throws AceException if writing fails
+     */
+    public void flush() throws AceException {
+        List<Op> batch = new ArrayList<>();
+        while (queue.drainTo(batch, batchSize) > 0) {
+            writeInCallingThread(batch);
+            batch.clear();
+        }
+        if (pendingCtiCounter.get() != null) {
+            writeInCallingThread(batch);
+        }
+    }
+
+    private void writeInCallingThread(List<Op> batch) throws AceException {
+        try {
+            writeWithRetry(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            AceException error = new AceException("Interrupted while persisting tokens");
+            giveUp(batch, error);
+            throw error;
+        }
+    }
+
+    /**
+     * Stops the flusher thread after writing all the queued tokens,
+     * and the staged claims whose client was not added
+     *
+     * @throws AceException if writing fails
+     */
+    @Override
+    public void close() throws AceException {
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!unwritten.isEmpty()) {
+            writeInCallingThread(unwritten);
+        }
+        flush();
+        List<Op> batch = new ArrayList<>();
+        for (String cti : pendingClaims.keySet()) {
+            batch.add(new Op(cti));
+        }
+        if (!batch.isEmpty()) {
+            writeInCallingThread(batch);
+        }
+    }
+
+    @Override
+    public String toString() {
+        long b = batches.sum();
+        return "Token write-behind (" + durability + "): "
+                + tokens.sum() + " tokens, "
+                + b + " batches, "
+                + rows.sum() + " rows, "
+                + "avg batch " + (b == 0 ? 0 : rows.sum() / b) + " rows, "
+                + retries.sum() + " retries, "
+                + lost.sum() + " lost";
+    }
+
+    private void checkRunning() throws AceException {
+        if (!running) {
+            throw new AceException("Token write-behind stage is closed");
+        }
+    }
+
+    private void submit(Op op) throws AceException {
+        try {
+            queue.put(op);
+            if (durability == Durability.GROUP_COMMIT) {
+                op.done.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AceException("Interrupted while persisting token");
+        } catch (ExecutionException e) {
+            throw new AceException("Unable to persist token: " + e.getCause().getMessage());
+        }
+    }
+
+    private void flushLoop() {
+        List<Op> batch = new ArrayList<>();
+        while (running) {
+            try {
+                batch.add(queue.take());
+                collect(batch);
+                writeWithRetry(batch);
+            } catch (InterruptedException e) {
+                // closing: the tokens still queued are written by close()
+                break;
+            } catch (AceException e) {
+                // already reported by giveUp
+            }
+            batch.clear();
+        }
+        // interrupted while collecting or retrying: written by close()
+        unwritten = batch;
+    }
+
+    /**
+     * Writes a batch, retrying with exponential backoff
+     *
+     * @throws AceException         if the batch could not be written after the last attempt
+     * @throws InterruptedException if interrupted while waiting to retry
+     */
+    private void writeWithRetry(List<Op> batch) throws AceException, InterruptedException {
+        long backoff = retryBackoff;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                writeLocked(batch);
+                return;
+            } catch (AceException e) {
+                if (attempt >= maxAttempts) {
+                    giveUp(batch, e);
+                    throw e;
+                }
+                retries.increment();
+                System.err.println("Token write-behind: attempt " + attempt + " of " + maxAttempts
+                        + " failed, retrying in " + backoff + " ms: " + e.getMessage());
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_RETRY_BACKOFF);
+            }
+        }
+    }
+
+    private void writeLocked(List<Op> batch) throws AceException {
+        flushLock.lock();
+        try {
+            write(batch);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the tokens of a batch that could not be written, so that
+     * they are not served from memory as if they were persisted, and
+     * notifies the issuers waiting for them
+     */
+    private void giveUp(List<Op> batch, AceException error) {
+        int dropped = 0;
+        flushLock.lock();
+        try {
+            for (Op op : batch) {
+                if (pendingClaims.remove(op.cti) != null) {
+                    dropped++;
+                }
+                pendingClients.remove(op.cti);
+                // the CTI counter is kept: it is written again with the next batch
+            }
+        } finally {
+            flushLock.unlock();
+        }
+        lost.add(dropped);
+        System.err.println("Token write-behind: giving up after " + maxAttempts + " attempts, "
+                + dropped + " tokens lost: " + error.getMessage());
+        for (Op op : batch) {
+            op.done.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Adds to the batch the tokens queued within the flush interval,
+     * up to the batch size
+     */
+    private void collect(List<Op> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            long left = deadline - System.nanoTime();
+            if (batch.size() >= batchSize || left <= 0) {
+                return;
+            }
+            Op next = queue.poll(left, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void write(List<Op> batch) throws AceException {
+        Map<String, Map<Short, CBORObject>> claims = new LinkedHashMap<>();
+        Map<String, String> clients = new LinkedHashMap<>();
+        for (Op op : batch) {
+            Map<Short, CBORObject> c = pendingClaims.get(op.cti);
+            if (c != null) {
+                claims.put(op.cti, c);
+            }
+            String clientId = pendingClients.get(op.cti);
+            if (clientId != null) {
+                clients.put(op.cti, clientId);
+            }
+        }
+        Long ctiCounter = pendingCtiCounter.get();
+
+        try (Connection conn = connections.open()) {
+            conn.setAutoCommit(false);
+            try {
+                int written = insertClaims(conn, claims) + insertClients(conn, clients);
+                if (ctiCounter != null) {
+                    try (PreparedStatement stmt = conn.prepareStatement("UPDATE "
+                            + DBConnector.ctiCounterTable + " SET " + DBConnector.ctiCounterColumn + " = ?;")) {
+                        stmt.setLong(1, ctiCounter);
+                        written += stmt.executeUpdate();
+                    }
+                }
+                conn.commit();
+                rows.add(written);
+                batches.increment();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new AceException("Unable to write tokens: " + e.getMessage());
+        }
+
+        // the written values are now served by the database
+        for (Map.Entry<String, Map<Short, CBORObject>> e : claims.entrySet()) {
+            pendingClaims.remove(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, String> e : clients.entrySet()) {
+            pendingClients.remove(e.getKey(), e.getValue());
+        }
+        if (ctiCounter != null) {
+            pendingCtiCounter.compareAndSet(ctiCounter, null);
+        }
+        for (Op op : batch) {
+            op.done.complete(null);
+        }
+    }
+
+    private int insertClaims(Connection conn, Map<String, Map<Short, CBORObject>> claims)
+            throws SQLException {
+        List<Object[]> values = new ArrayList<>();
+        for (Map.Entry<String, Map<Short, CBORObject>> token : claims.entrySet()) {
+            for (Map.Entry<Short, CBORObject> claim : token.getValue().entrySet()) {
+                values.add(new Object[]{token.getKey(), claim.getKey(), claim.getValue().EncodeToBytes()});
+            }
+        }
+        return insertRows(conn, DBConnector.claimsTable, new String[]{DBConnector.ctiColumn,
+                DBConnector.claimNameColumn, DBConnector.claimValueColumn}, values);
+    }
+
+    private int insertClients(Connection conn, Map<String, String> clients) throws SQLException {
+        List<Object[]> values = new ArrayList<>();
+        for (Map.Entry<String, String> e : clients.entrySet()) {
+            values.add(new Object[]{e.getKey(), e.getValue()});
+        }
+        return insertRows(conn, DBConnector.cti2clientTable,
+                new String[]{DBConnector.ctiColumn, DBConnector.clientIdColumn}, values);
+    }
+
+    /**
+     * Inserts rows with multi-row INSERT statements of at most batchSize rows each
+     */
+    private int insertRows(Connection conn, String table, String[] columns, List<Object[]> values)
+            throws SQLException {
+        int inserted = 0;
+        for (int from = 0; from < values.size(); from += batchSize) {
+            List<Object[]> chunk = values.subList(from, Math.min(from + batchSize, values.size()));
+
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(table)
+                    .append(" (").append(String.join(", ", columns)).append(") VALUES ");
+            String row = "(" + String.join(", ", Collections.nCopies(columns.length, "?")) + ")";
+            sql.append(String.join(", ", Collections.nCopies(chunk.size(), row))).append(";");
+
+            try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+                int i = 1;
+                for (Object[] v : chunk) {
+                    for (Object o : v) {
+                        stmt.setObject(i++, o);
+                    }
+                }
+                inserted += stmt.executeUpdate();
+            }
+        }
+        return inserted;
+    }
+}
@@ -0,0 +1,177 @@
+package eu.sifishome.introspection;
+
+import com.upokecenter.cbor.CBORException;
+import com.upokecenter.cbor.CBORObject;
+import com.upokecenter.cbor.CBORType;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import se.sics.ace.AceException;
+import se.sics.ace.Constants;
+import se.sics.ace.TimeProvider;
+import se.sics.ace.as.DBConnector;
+import se.sics.ace.as.PDP;
+import se.sics.ace.coap.CoapReq;
+
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Batched introspection endpoint of the AS.
+ * <p>
+ * Requests must be protected with OSCORE, and their sender must be a
+ * registered RS allowed to introspect. The OSCORE identity of the sender
+ * is resolved to the name of the RS before the PDP and the database are
+ * queried, as both are keyed by peer name. A POST carries a CBOR array with the identifiers
+ * (cti) of up to {@link #MAX_BATCH} tokens, and the response maps each of
+ * them to its status: a CBOR map with 'active', and with 'exp' for active
+ * tokens that expire. An RS thus introspects all its tokens due at the
+ * same time in one exchange, instead of one exchange per token with the
+ * introspection endpoint. A token is active if the AS still holds it, it
+ * did not expire, and one of its audiences is served by the RS.
+ */
+public class BatchIntrospectResource extends CoapResource {
+
+    public static final int MAX_BATCH = 256;
+
+    private final DBConnector db;
+    private final PDP pdp;
+    private final TimeProvider time;
+    private final Function<String, String> peerNames;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder tokens = new LongAdder();
+
+    /**
+     * @param name the name of the resource
+     * @param db   the database of the AS
+     * @param pdp  the PDP telling which RSs can introspect
+     * @param time the time provider of the AS
+     * @param peerNames gives the name of a peer from its OSCORE identity,
+     *                  or null if the identity is unknown
+     */
+    public BatchIntrospectResource(String name, DBConnector db, PDP pdp, TimeProvider time,
+                                   Function<String, String> peerNames) {
+        super(name);
+        this.db = db;
+        this.pdp = pdp;
+        this.time = time;
+        this.peerNames = peerNames;
+        getAttributes().setTitle("Batch Introspect Resource");
+    }
+
+    @Override
+    public void handlePOST(CoapExchange exchange) {
+        Request request = exchange.advanced().getRequest();
+        if (!request.getOptions().hasOscore()) {
+            exchange.respond(CoAP.ResponseCode.UNAUTHORIZED, "OSCORE protection required");
+            return;
+        }
+        String senderId = getSenderId(request);
+        String rsName = senderId == null ? null : peerNames.apply(senderId);
+        try {
+            if (rsName == null || !pdp.canAccessIntrospect(rsName)) {
+                exchange.respond(CoAP.ResponseCode.FORBIDDEN);
+                return;
+            }
+        } catch (AceException e) {
+            exchange.respond(CoAP.ResponseCode.FORBIDDEN);
+            return;
+        }
+
+        CBORObject ctis;
+        try {
+            ctis = CBORObject.DecodeFromBytes(exchange.getRequestPayload());
+            if (ctis.getType() != CBORType.Array || ctis.size() > MAX_BATCH) {
+                throw new CBORException("not an array of at most " + MAX_BATCH + " elements");
+            }
+            for (CBORObject cti : ctis.getValues()) {
+                if (cti.getType() != CBORType.ByteString) {
+                    throw new CBORException("token identifiers must be byte strings");
+                }
+            }
+        } catch (CBORException | IllegalArgumentException | NullPointerException e) {
+            exchange.respond(CoAP.ResponseCode.BAD_REQUEST,
+                    "Expected a CBOR array of at most " + MAX_BATCH + " token identifiers");
+            return;
+        }
+
+        try {
+            exchange.respond(CoAP.ResponseCode.CONTENT, introspect(rsName, ctis).EncodeToBytes(),
+                    MediaTypeRegistry.APPLICATION_CBOR);
+        } catch (AceException e) {
+            exchange.respond(CoAP.ResponseCode.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    /**
+     * @param request the request
+     * @return the OSCORE identity of the sender of the request, or null if unknown
+     */
+    protected String getSenderId(Request request) {
+        try {
+            return CoapReq.getInstance(request).getSenderId();
+        } catch (AceException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Introspects a batch of tokens on behalf of an RS
+     *
+     * @param rsName the name of the RS
+     * @param ctis a CBOR array of token identifiers, as byte strings
+     * @return a CBOR map from each token identifier to its status
+     * @throws AceException if the database cannot be read
+     */
+    public CBORObject introspect(String rsName, CBORObject ctis) throws AceException {
+        requests.increment();
+        Set<String> audiences = db.getAudiences(rsName);
+        long now = time.getCurrentTime();
+        CBORObject statuses = CBORObject.NewMap();
+        for (CBORObject cti : ctis.getValues()) {
+            tokens.increment();
+            Map<Short, CBORObject> claims =
+                    db.getClaims(Base64.getEncoder().encodeToString(cti.GetByteString()));
+            CBORObject status = CBORObject.NewMap();
+            CBORObject exp = claims == null ? null : claims.get(Constants.EXP);
+            boolean active = claims != null && !claims.isEmpty()
+                    && (exp == null || exp.AsInt64Value() > now)
+                    && isAddressedTo(claims.get(Constants.AUD), audiences);
+            status.Add(Constants.ACTIVE, active ? CBORObject.True : CBORObject.False);
+            if (active && exp != null) {
+                status.Add(Constants.EXP, exp);
+            }
+            statuses.Add(cti, status);
+        }
+        return statuses;
+    }
+
+    private static boolean isAddressedTo(CBORObject aud, Set<String> audiences) {
+        if (aud == null || audiences == null) {
+            return false;
+        }
+        if (aud.getType() == CBORType.TextString) {
+            return audiences.contains(aud.AsString());
+        }
+        if (aud.getType() == CBORType.Array) {
+            for (CBORObject a : aud.getValues()) {
+                if (a.getType() == CBORType.TextString && audiences.contains(a.AsString())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "Batch introspection: " + requests.sum() + " requests, "
+                + tokens.sum() + " tokens";
+    }
+}
@@ -0,0 +1,404 @@
+package eu.sifishome.pdp;
+
+import eu.sifishome.attributes.AttributeStore;
+import eu.sifishome.policies.PolicyStore;
+import eu.sifishome.policies.PolicyTemplate;
+import se.sics.ace.AceException;
+import se.sics.ace.as.DBConnector;
+import se.sics.ace.examples.KissPDP;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PDP evaluating compiled policies (see {@link CompiledPolicy}).
+ * <p>
+ * Each distinct condition on an environment attribute, e.g.,
+ * 'thermometer-reachable' equal to 'y', is a bit. The bits of the
+ * conditions currently satisfied are kept up to date by listening to the
+ * {@link AttributeStore}, and each policy keeps the bits of the conditions
+ * it requires. Evaluating the conditions of a policy is therefore a few
+ * bitwise operations, with no XACML processing at decision time.
+ * Decisions are cached until the bits of the satisfied conditions change.
+ * Only the policies whose target may match a request are evaluated (see
+ * {@link TargetIndex}).
+ * <p>
+ * The policies are kept in a {@link PolicyStore}, and the policies of a
+ * subject are only compiled when a decision about that subject is first
+ * made, so starting the AS does not depend on the number of policies.
+ * <p>
+ * Access to the token and introspection endpoints is handled as in the
+ * {@link KissPDP}. Tokens whose ongoing conditions are no longer satisfied
+ * can be revoked through a {@link SessionReevaluator}, using this PDP as
+ * its evaluator.
+ */
+public class BitsetPDP extends CachedKissPDP implements AttributeStore.Listener, SessionReevaluator.Evaluator {
+
+    private static final String READ = "read";
+    private static final String WRITE = "write";
+
+    /**
+     * A compiled policy, with the bits of its conditions
+     */
+    private static class Rule {
+        final CompiledPolicy policy;
+        final long[] pre;
+        final long[] ongoing;
+
+        Rule(CompiledPolicy policy, long[] pre, long[] ongoing) {
+            this.policy = policy;
+            this.pre = pre;
+            this.ongoing = ongoing;
+        }
+    }
+
+    private final AttributeStore attributeStore;
+    private final PolicyStore policyStore;
+
+    // rules of the loaded subjects, by policy id
+    private final Map<String, Rule> rules = new ConcurrentHashMap<>();
+    // the same rules, by target
+    private final TargetIndex<Rule> targets = new TargetIndex<>();
+    // subjects whose policies were compiled from the policy store
+    private final Set<String> loadedSubjects = ConcurrentHashMap.newKeySet();
+
+    // bits of the conditions, by attribute and value
+    private final Map<String, Map<String, Integer>> conditionBits = new HashMap<>();
+    private int numBits = 0;
+    // bits of the conditions currently satisfied, replaced as a whole on each change
+    private volatile long[] satisfied = new long[0];
+    // increased when the satisfied conditions change
+    private volatile long satisfiedVersion = 0;
+
+    /**
+     * @param db             the database connector, used for the token and introspection access
+     * @param attributeStore the store of the mutable attributes
+     * @param policyStore    the store of the policies
+     * @throws AceException if the database tables of the PDP cannot be created
+     */
+    public BitsetPDP(DBConnector db, AttributeStore attributeStore, PolicyStore policyStore)
+            throws AceException {
+        super(db);
+        this.attributeStore = attributeStore;
+        this.policyStore = policyStore;
+        attributeStore.addListener(this);
+    }
+
+    /**
+     * Adds the access of a client to a sub-scope, using the policy
+     * template of the resource, e.g., 'policy_template_temp' for 'r_temp'.
+     */
+    @Override
+    public void addAccess(String clientId, String aud, String scope) throws AceException {
+        Map<String, String> values = new HashMap<>();
+        values.put(PolicyTemplate.SUBJECT, clientId);
+        values.put(PolicyTemplate.RESOURCE_SERVER, aud);
+        addAccess(clientId, aud, scope,
+                PolicyTemplate.get("policy_template_" + getResource(scope)).render(values));
+    }
+
+    /**
+     * Adds the access of a client to a sub-scope, replacing the
+     * previous access of the client to the same sub-scope, if any.
+     *
+     * @param clientId the client
+     * @param aud      the audience
+     * @param subScope the sub-scope, e.g., "r_temp"
+     * @param policy   the XACML policy. The policy id and the resource
+     *                 placeholders are filled in, if present
+     * @throws AceException if the policy cannot be compiled or stored
+     */
+    public void addAccess(String clientId, String aud, String subScope, String policy)
+            throws AceException {
+        String policyId = "policy_" + clientId + "_" + aud + "_" + subScope;
+        Map<String, String> values = new HashMap<>();
+        values.put(PolicyTemplate.POLICY_ID, policyId);
+        values.put(PolicyTemplate.RESOURCE, getResource(subScope));
+        String rendered = PolicyTemplate.of(policyId, policy).render(values);
+        CompiledPolicy compiled = CompiledPolicy.compile(rendered);
+        policyStore.put(policyId, compiled.getSubject(), compiled.getResource(),
+                compiled.getAction(), rendered);
+        addPolicy(compiled);
+    }
+
+    /**
+     * Adds a compiled policy, replacing the policy with the same id, if any.
+     * The policy is not added to the policy store, so it is lost on restart.
+     *
+     * @param policy the compiled policy
+     */
+    public void addPolicy(CompiledPolicy policy) {
+        Rule previous;
+        synchronized (this) {
+            previous = putRule(policy);
+        }
+        invalidate(policy);
+        if (previous != null) {
+            invalidate(previous.policy);
+        }
+    }
+
+    /**
+     * Must be called while holding the lock of this PDP.
+     *
+     * @return the replaced rule, if any
+     */
+    private Rule putRule(CompiledPolicy policy) {
+        Rule rule = new Rule(policy, toBits(policy.getPreConditions()),
+                toBits(policy.getOngoingConditions()));
+        Rule previous = rules.put(policy.getId(), rule);
+        if (previous != null) {
+            targets.remove(previous.policy);
+        }
+        targets.put(policy, rule);
+        return previous;
+    }
+
+    private void invalidate(CompiledPolicy policy) {
+        if (policy.getSubject() == null) {
+            decisions.invalidate();
+        } else {
+            decisions.invalidate(policy.getSubject());
+        }
+    }
+
+    /**
+     * Removes the policies whose target is the given client
+     *
+     * @param clientId the client
+     * @throws AceException if the policies cannot be removed from the policy store
+     */
+    public void removeAccess(String clientId) throws AceException {
+        try {
+            for (String policyId : policyStore.findBySubject(clientId)) {
+                policyStore.remove(policyId);
+            }
+        } finally {
+            synchronized (this) {
+                rules.values().removeIf(r -> {
+                    if (!clientId.equals(r.policy.getSubject())) {
+                        return false;
+                    }
+                    targets.remove(r.policy);
+                    return true;
+                });
+            }
+            decisions.invalidate(clientId);
+        }
+    }
+
+    /**
+     * @param clientId the client
+     * @return true if the policy store has policies whose target is the client
+     */
+    public boolean hasAccess(String clientId) {
+        return !policyStore.findBySubject(clientId).isEmpty();
+    }
+
+    /**
+     * @return the number of policies
+     */
+    public int size() {
+        return policyStore.size();
+    }
+
+    /**
+     * Compiles the policies of a subject from the policy store, the first
+     * time a decision about the subject is made.
+     */
+    private void load(String subject) throws AceException {
+        if (loadedSubjects.contains(subject)) {
+            return;
+        }
+        synchronized (loadedSubjects) {
+            if (loadedSubjects.contains(subject)) {
+                return;
+            }
+            for (String policyId : policyStore.findBySubject(subject)) {
+                String policy = policyStore.get(policyId);
+                if (policy != null && !rules.containsKey(policyId)) {
+                    CompiledPolicy compiled = CompiledPolicy.compile(policy);
+                    synchronized (this) {
+                        putRule(compiled);
+                    }
+                }
+            }
+            loadedSubjects.add(subject);
+        }
+    }
+
+    @Override
+    protected long getAttributeVersion() {
+        return satisfiedVersion;
+    }
+
+    @Override
+    protected Object evaluate(String clientId, String aud, Object scope) throws AceException {
+        if (!(scope instanceof String)) {
+            throw new AceException("Scope must be a String if using BitsetPDP");
+        }
+        load(clientId);
+        load(PolicyStore.ANY);
+        StringJoiner granted = new StringJoiner(" ");
+        for (String subScope : ((String) scope).split(" ")) {
+            if (isPermitted(clientId, aud, subScope, false)) {
+                granted.add(subScope);
+            }
+        }
+        return granted.length() == 0 ? null : granted.toString();
+    }
+
+    /**
+     * A session is permitted as long as the ongoing conditions of
+     * all its sub-scopes are satisfied, for any of its audiences.
+     */
+    @Override
+    public boolean isPermitted(SessionIndex.Session session) throws AceException {
+        load(session.getClientId());
+        load(PolicyStore.ANY);
+        for (String subScope : session.getSubScopes()) {
+            boolean permitted = false;
+            for (String aud : session.getAuds()) {
+                if (isPermitted(session.getClientId(), aud, subScope, true)) {
+                    permitted = true;
+                    break;
+                }
+            }
+            if (!permitted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param ongoingOnly true to only evaluate the ongoing conditions,
+     *                    false to also evaluate the pre conditions
+     */
+    private boolean isPermitted(String clientId, String aud, String subScope, boolean ongoingOnly) {
+        int separator = subScope.indexOf('_');
+        if (separator == -1) {
+            return false;
+        }
+        String resource = subScope.substring(separator + 1);
+        String permissions = subScope.substring(0, separator);
+        long[] bits = satisfied;
+        for (String action : getActions(permissions)) {
+            if (!isPermitted(clientId, aud, resource, action, bits, ongoingOnly)) {
+                return false;
+            }
+        }
+        return !permissions.isEmpty();
+    }
+
+    private boolean isPermitted(String clientId, String aud, String resource, String action,
+                                long[] bits, boolean ongoingOnly) {
+        // deny unless permit
+        return targets.anyMatch(clientId, resource, action,
+                r -> r.policy.matches(clientId, aud, resource, action)
+                        && (ongoingOnly || isSatisfied(r.pre, bits))
+                        && isSatisfied(r.ongoing, bits));
+    }
+
+    private static boolean isSatisfied(long[] required, long[] bits) {
+        for (int i = 0; i < required.length; i++) {
+            long s = i < bits.length ? bits[i] : 0;
+            if ((required[i] & ~s) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> getActions(String permissions) {
+        List<String> actions = new ArrayList<>(2);
+        for (char p : permissions.toCharArray()) {
+            if (p == 'r') {
+                actions.add(READ);
+            } else if (p == 'w') {
+                actions.add(WRITE);
+            } else {
+                // unknown permission, that no policy can grant
+                actions.add(String.valueOf(p));
+            }
+        }
+        return actions;
+    }
+
+    private static String getResource(String subScope) {
+        return subScope.substring(subScope.indexOf('_') + 1);
+    }
+
+    /**
+     * Gets the bits of the given conditions, allocating the missing ones.
+     * Must be called while holding the lock of this PDP.
+     */
+    private long[] toBits(Map<String, String> conditions) {
+        List<Integer> indexes = new ArrayList<>();
+        int max = -1;
+        for (Map.Entry<String, String> c : conditions.entrySet()) {
+            int bit = getBit(c.getKey(), c.getValue());
+            indexes.add(bit);
+            max = Math.max(max, bit);
+        }
+        long[] bits = new long[max / 64 + 1];
+        for (int bit : indexes) {
+            bits[bit / 64] |= 1L << (bit % 64);
+        }
+        return bits;
+    }
+
+    private int getBit(String attribute, String value) {
+        Map<String, Integer> values = conditionBits.computeIfAbsent(attribute, a -> new HashMap<>());
+        Integer bit = values.get(value);
+        if (bit != null) {
+            return bit;
+        }
+        int newBit = numBits++;
+        values.put(value, newBit);
+        long[] newSatisfied = Arrays.copyOf(satisfied, newBit / 64 + 1);
+        if (value.equals(attributeStore.get(attribute))) {
+            newSatisfied[newBit / 64] |= 1L << (newBit % 64);
+        }
+        satisfied = newSatisfied;
+        return newBit;
+    }
+
+    @Override
+    public synchronized void attributesChanged(Map<String, String> changed, long version) {
+        long[] newSatisfied = null;
+        for (Map.Entry<String, String> c : changed.entrySet()) {
+            Map<String, Integer> values = conditionBits.get(c.getKey());
+            if (values == null) {
+                continue;
+            }
+            if (newSatisfied == null) {
+                newSatisfied = satisfied.clone();
+            }
+            for (Map.Entry<String, Integer> v : values.entrySet()) {
+                int bit = v.getValue();
+                if (v.getKey().equals(c.getValue())) {
+                    newSatisfied[bit / 64] |= 1L << (bit % 64);
+                } else {
+                    newSatisfied[bit / 64] &= ~(1L << (bit % 64));
+                }
+            }
+        }
+        if (newSatisfied != null && !Arrays.equals(newSatisfied, satisfied)) {
+            satisfied = newSatisfied;
+            satisfiedVersion++;
+        }
+    }
+
+    @Override
+    public void close() throws AceException {
+        attributeStore.removeListener(this);
+        super.close();
+    }
+}
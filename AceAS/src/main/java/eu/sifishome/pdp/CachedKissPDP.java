@@ -0,0 +1,95 @@
+package eu.sifishome.pdp;
+
+import se.sics.ace.AceException;
+import se.sics.ace.as.DBConnector;
+import se.sics.ace.examples.KissPDP;
+
+/**
+ * KissPDP whose decisions are cached (see {@link DecisionCache}).
+ * <p>
+ * The grants of the KissPDP are static, so a decision only changes when
+ * a grant of its subject is added. Subclasses whose decisions depend on
+ * attributes make them in {@link #evaluate(String, String, Object)}, and
+ * report the version of the attributes in {@link #getAttributeVersion()}.
+ */
+public class CachedKissPDP extends KissPDP {
+
+    private static final String TOKEN = "token";
+    private static final String INTROSPECT = "introspect";
+
+    protected final DecisionCache decisions = new DecisionCache();
+
+    /**
+     * @param db the database connector
+     * @throws AceException if the database tables of the PDP cannot be created
+     */
+    public CachedKissPDP(DBConnector db) throws AceException {
+        super(db);
+    }
+
+    @Override
+    public boolean canAccessToken(String clientId) throws AceException {
+        return decisions.get(clientId, TOKEN, null, 0, () -> super.canAccessToken(clientId));
+    }
+
+    @Override
+    public boolean canAccessIntrospect(String rsId) throws AceException {
+        return decisions.get(rsId, INTROSPECT, null, 0, () -> super.canAccessIntrospect(rsId));
+    }
+
+    @Override
+    public Object canAccess(String clientId, String aud, Object scope) throws AceException {
+        return decisions.get(clientId, aud, scope, getAttributeVersion(),
+                () -> evaluate(clientId, aud, scope));
+    }
+
+    /**
+     * Makes a decision on a cache miss
+     *
+     * @see #canAccess(String, String, Object)
+     */
+    protected Object evaluate(String clientId, String aud, Object scope) throws AceException {
+        return super.canAccess(clientId, aud, scope);
+    }
+
+    /**
+     * @return the version of the attributes the decisions depend on
+     */
+    protected long getAttributeVersion() {
+        return 0;
+    }
+
+    @Override
+    public void addTokenAccess(String id) throws AceException {
+        try {
+            super.addTokenAccess(id);
+        } finally {
+            decisions.invalidate(id);
+        }
+    }
+
+    @Override
+    public void addIntrospectAccess(String id) throws AceException {
+        try {
+            super.addIntrospectAccess(id);
+        } finally {
+            decisions.invalidate(id);
+        }
+    }
+
+    @Override
+    public void addAccess(String clientId, String aud, String scope) throws AceException {
+        try {
+            super.addAccess(clientId, aud, scope);
+        } finally {
+            decisions.invalidate(clientId);
+        }
+    }
+
+    /**
+     * @return the cache of the decisions
+     */
+    public DecisionCache getDecisionCache() {
+        return decisions;
+    }
+}
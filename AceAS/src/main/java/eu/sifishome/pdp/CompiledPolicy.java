@@ -0,0 +1,307 @@
+package eu.sifishome.pdp;
+
+import eu.sifishome.policies.PolicyTemplate;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import se.sics.ace.AceException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * XACML policy compiled into a target and two sets of attribute conditions.
+ * <p>
+ * Only the shape of the policies in 'policy-templates' is supported:
+ * a policy whose target and permit rule are conjunctions of string-equal
+ * matches on the subject, the resource server, the resource, the action,
+ * and the environment attributes. The matches on the subject, the resource
+ * server, the resource and the action form the target of the compiled
+ * policy, while the matches on the environment attributes are the
+ * conditions to evaluate before issuing a token (pre) and for as long as
+ * the token is valid (ongoing).
+ */
+public final class CompiledPolicy {
+
+    public static final String SUBJECT_ID = "urn:oasis:names:tc:xacml:1.0:subject:subject-id";
+    public static final String RESOURCE_SERVER_ID = "urn:oasis:names:tc:xacml:1.0:resource:resource-server";
+    public static final String RESOURCE_ID = "urn:oasis:names:tc:xacml:1.0:resource:resource-id";
+    public static final String ACTION_ID = "urn:oasis:names:tc:xacml:1.0:action:action-id";
+
+    private static final String FUNCTION_PREFIX = "urn:oasis:names:tc:xacml:1.0:function:";
+    private static final String AND = FUNCTION_PREFIX + "and";
+    private static final String STRING_EQUAL = FUNCTION_PREFIX + "string-equal";
+    private static final String ONE_AND_ONLY = FUNCTION_PREFIX + "string-one-and-only";
+
+    private static final ThreadLocal<DocumentBuilder> builders = ThreadLocal.withInitial(() -> {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final String id;
+    private final String subject;
+    private final String resourceServer;
+    private final String resource;
+    private final String action;
+    private final Map<String, String> preConditions;
+    private final Map<String, String> ongoingConditions;
+
+    private CompiledPolicy(String id, Map<String, String> target,
+                           Map<String, String> preConditions, Map<String, String> ongoingConditions) {
+        this.id = id;
+        this.subject = target.get(SUBJECT_ID);
+        this.resourceServer = target.get(RESOURCE_SERVER_ID);
+        this.resource = target.get(RESOURCE_ID);
+        this.action = target.get(ACTION_ID);
+        this.preConditions = Collections.unmodifiableMap(preConditions);
+        this.ongoingConditions = Collections.unmodifiableMap(ongoingConditions);
+    }
+
+    /**
+     * Compiles a policy.
+     *
+     * @param policy the XACML policy, without placeholders
+     * @return the compiled policy
+     * @throws AceException if the policy is malformed, or its shape is not supported
+     */
+    public static CompiledPolicy compile(String policy) throws AceException {
+        Document doc;
+        try {
+            DocumentBuilder builder = builders.get();
+            builder.reset();
+            doc = builder.parse(new InputSource(new StringReader(policy)));
+        } catch (SAXException | IOException e) {
+            throw new AceException("Malformed policy: " + e.getMessage());
+        }
+        Element root = doc.getDocumentElement();
+        if (!root.getTagName().equals("Policy")) {
+            throw new AceException("Unsupported policy: expected a Policy element");
+        }
+        String id = root.getAttribute("PolicyId");
+
+        Map<String, String> target = new LinkedHashMap<>();
+        Map<String, String> pre = new LinkedHashMap<>();
+        Map<String, String> ongoing = new LinkedHashMap<>();
+        boolean hasPermit = false;
+
+        for (Element child : children(root)) {
+            switch (child.getTagName()) {
+                case "Target":
+                    compileTarget(id, child, target, pre);
+                    break;
+                case "Rule":
+                    if (child.getAttribute("Effect").equals("Permit")) {
+                        if (hasPermit) {
+                            throw unsupported(id, "more than one permit rule");
+                        }
+                        hasPermit = true;
+                        compileRule(id, child, target, pre, ongoing);
+                    } else if (!children(child).stream().allMatch(
+                            e -> e.getTagName().equals("Description") || isEmptyTarget(e))) {
+                        // only the default deny rule is supported
+                        throw unsupported(id, "deny rule with a target or a condition");
+                    }
+                    break;
+                default:
+                    // description and other metadata
+                    break;
+            }
+        }
+        if (!hasPermit) {
+            throw unsupported(id, "no permit rule");
+        }
+        return new CompiledPolicy(id, target, pre, ongoing);
+    }
+
+    private static void compileTarget(String id, Element target, Map<String, String> targetValues,
+                                      Map<String, String> pre) throws AceException {
+        for (Element anyOf : children(target)) {
+            List<Element> allOfs = children(anyOf);
+            if (allOfs.size() != 1) {
+                throw unsupported(id, "disjunction in a target");
+            }
+            for (Element match : children(allOfs.get(0))) {
+                if (!match.getAttribute("MatchId").equals(STRING_EQUAL)) {
+                    throw unsupported(id, "match " + match.getAttribute("MatchId"));
+                }
+                addMatch(id, match, targetValues, pre);
+            }
+        }
+    }
+
+    private static void compileRule(String id, Element rule, Map<String, String> target,
+                                    Map<String, String> pre, Map<String, String> ongoing)
+            throws AceException {
+        for (Element child : children(rule)) {
+            if (child.getTagName().equals("Target")) {
+                compileTarget(id, child, target, pre);
+            } else if (child.getTagName().equals("Condition")) {
+                String decisionTime = child.getAttribute("DecisionTime");
+                if (decisionTime.equals("post")) {
+                    // evaluated when the usage ends, which does not affect the decision
+                    continue;
+                }
+                Map<String, String> conditions = decisionTime.equals("ongoing") ? ongoing : pre;
+                for (Element apply : children(child)) {
+                    compileApply(id, apply, target, conditions);
+                }
+            }
+        }
+    }
+
+    private static void compileApply(String id, Element apply, Map<String, String> target,
+                                     Map<String, String> conditions) throws AceException {
+        String function = apply.getAttribute("FunctionId");
+        if (function.equals(AND)) {
+            for (Element a : children(apply)) {
+                compileApply(id, a, target, conditions);
+            }
+        } else if (function.equals(STRING_EQUAL)) {
+            addMatch(id, apply, target, conditions);
+        } else {
+            throw unsupported(id, "function " + function);
+        }
+    }
+
+    /**
+     * Adds a string-equal match, i.e., an AttributeDesignator, possibly within
+     * a string-one-and-only function, and an AttributeValue.
+     */
+    private static void addMatch(String id, Element match, Map<String, String> target,
+                                 Map<String, String> conditions) throws AceException {
+        String attributeId = null;
+        String value = null;
+        for (Element e : children(match)) {
+            Element designator = e;
+            if (e.getTagName().equals("Apply")) {
+                if (!e.getAttribute("FunctionId").equals(ONE_AND_ONLY)) {
+                    throw unsupported(id, "function " + e.getAttribute("FunctionId"));
+                }
+                List<Element> args = children(e);
+                designator = args.size() == 1 ? args.get(0) : e;
+            }
+            if (designator.getTagName().equals("AttributeDesignator")) {
+                attributeId = designator.getAttribute("AttributeId");
+            } else if (designator.getTagName().equals("AttributeValue")) {
+                value = designator.getTextContent().trim();
+            } else {
+                throw unsupported(id, "element " + designator.getTagName());
+            }
+        }
+        if (attributeId == null || value == null) {
+            throw unsupported(id, "match without attribute or value");
+        }
+
+        if (attributeId.startsWith(PolicyTemplate.ENVIRONMENT_PREFIX)) {
+            put(id, conditions, attributeId.substring(PolicyTemplate.ENVIRONMENT_PREFIX.length()), value);
+        } else if (attributeId.equals(SUBJECT_ID) || attributeId.equals(RESOURCE_SERVER_ID)
+                || attributeId.equals(RESOURCE_ID) || attributeId.equals(ACTION_ID)) {
+            put(id, target, attributeId, value);
+        } else {
+            throw unsupported(id, "attribute " + attributeId);
+        }
+    }
+
+    private static void put(String id, Map<String, String> values, String attribute, String value)
+            throws AceException {
+        String previous = values.put(attribute, value);
+        if (previous != null && !previous.equals(value)) {
+            throw unsupported(id, "conflicting values for " + attribute);
+        }
+    }
+
+    private static boolean isEmptyTarget(Element e) {
+        return e.getTagName().equals("Target") && children(e).isEmpty();
+    }
+
+    private static List<Element> children(Element parent) {
+        List<Element> elements = new ArrayList<>();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node n = nodes.item(i);
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                elements.add((Element) n);
+            }
+        }
+        return elements;
+    }
+
+    private static AceException unsupported(String id, String reason) {
+        return new AceException("Unsupported policy " + id + ": " + reason);
+    }
+
+    /**
+     * Tells whether the target of this policy matches a request.
+     * Target attributes the policy does not constrain match any value.
+     */
+    public boolean matches(String subject, String resourceServer, String resource, String action) {
+        return (this.subject == null || this.subject.equals(subject))
+                && (this.resourceServer == null || this.resourceServer.equals(resourceServer))
+                && (this.resource == null || this.resource.equals(resource))
+                && (this.action == null || this.action.equals(action));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the subject of the target, or null if the policy applies to any subject
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return the resource server of the target, or null if the policy applies to any
+     */
+    public String getResourceServer() {
+        return resourceServer;
+    }
+
+    /**
+     * @return the resource of the target, or null if the policy applies to any
+     */
+    public String getResource() {
+        return resource;
+    }
+
+    /**
+     * @return the action of the target, or null if the policy applies to any
+     */
+    public String getAction() {
+        return action;
+    }
+
+    /**
+     * @return the values required before issuing a token, by environment attribute
+     */
+    public Map<String, String> getPreConditions() {
+        return preConditions;
+    }
+
+    /**
+     * @return the values required while a token is valid, by environment attribute
+     */
+    public Map<String, String> getOngoingConditions() {
+        return ongoingConditions;
+    }
+}
@@ -0,0 +1,150 @@
+package eu.sifishome.pdp;
+
+import se.sics.ace.AceException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of the decisions of a PDP, keyed by subject, audience, scope,
+ * and version of the attributes the decisions depend on.
+ * <p>
+ * A decision is only reused with the same attribute version it was made
+ * with, and at most one decision is kept for each subject, audience and
+ * scope, so decisions made with older versions are replaced rather than
+ * accumulated. Decisions are invalidated by subject when the grants of
+ * the subject change. Decisions made concurrently with an invalidation
+ * are not cached.
+ */
+public class DecisionCache {
+
+    public static final int DEFAULT_MAX_SIZE = 100000;
+
+    /**
+     * Makes a decision on a cache miss
+     */
+    public interface Loader<T> {
+        T load() throws AceException;
+    }
+
+    private static class Decision {
+        final long version;
+        final Object value;
+
+        Decision(long version, Object value) {
+            this.version = version;
+            this.value = value;
+        }
+    }
+
+    private final int maxSize;
+    // decisions, by subject and by audience and scope
+    private final Map<String, Map<String, Decision>> decisions = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong size = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public DecisionCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize the maximum number of decisions. When it is reached,
+     *                the cache is emptied
+     */
+    public DecisionCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached decision, making it if needed.
+     *
+     * @param subject  the subject, e.g., the client id
+     * @param audience the audience, or the endpoint for the token and introspection access
+     * @param scope    the scope, or null
+     * @param version  the version of the attributes the decision depends on
+     * @param loader   the maker of the decision
+     * @return the decision
+     * @throws AceException if making the decision fails
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String subject, String audience, Object scope, long version, Loader<T> loader)
+            throws AceException {
+        String key = audience + '\u0000' + scope;
+        Map<String, Decision> bySubject = decisions.get(subject);
+        Decision d = bySubject == null ? null : bySubject.get(key);
+        if (d != null && d.version == version) {
+            hits.increment();
+            return (T) d.value;
+        }
+        misses.increment();
+        long gen = generation.get();
+        T loaded = loader.load();
+        if (generation.get() == gen) {
+            if (size.get() >= maxSize) {
+                invalidate();
+                return loaded;
+            }
+            if (decisions.computeIfAbsent(subject, s -> new ConcurrentHashMap<>())
+                    .put(key, new Decision(version, loaded)) == null) {
+                size.incrementAndGet();
+            }
+            // an invalidation may have happened in the meantime
+            if (generation.get() != gen) {
+                invalidate(subject);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Removes the decisions about a subject
+     *
+     * @param subject the subject
+     */
+    public void invalidate(String subject) {
+        generation.incrementAndGet();
+        Map<String, Decision> removed = decisions.remove(subject);
+        if (removed != null) {
+            size.addAndGet(-removed.size());
+        }
+    }
+
+    /**
+     * Removes all the decisions
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        decisions.clear();
+        size.set(0);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the ratio of decisions served from the cache
+     */
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "Decision cache: " + size.get() + " decisions, "
+                + getHits() + " hits, "
+                + getMisses() + " misses, "
+                + String.format("hit rate %.2f", getHitRate());
+    }
+}
@@ -0,0 +1,115 @@
+package eu.sifishome.pdp;
+
+import se.sics.ace.AceException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates the sub-scopes of a scope concurrently, on a bounded pool,
+ * and merges the granted sub-scopes.
+ * <p>
+ * The first sub-scope is evaluated by the calling thread, so a scope
+ * with a single sub-scope is evaluated without any hand-off. When the
+ * pool is saturated, the calling thread evaluates the remaining
+ * sub-scopes itself, so requests are slowed down rather than rejected.
+ */
+public class ParallelScopeEvaluator implements AutoCloseable {
+
+    public static final int QUEUE_CAPACITY = 1000;
+
+    /**
+     * Evaluates a single sub-scope
+     */
+    public interface SubScopeEvaluator {
+        /**
+         * @param subScope the sub-scope, e.g., "r_temp"
+         * @return the granted scope, or null if the sub-scope is not granted
+         * @throws AceException if the sub-scope cannot be evaluated
+         */
+        Object evaluate(String subScope) throws AceException;
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param threads the maximum number of sub-scopes evaluated concurrently,
+     *                besides the ones evaluated by the calling threads
+     */
+    public ParallelScopeEvaluator(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                r -> {
+                    Thread t = new Thread(r, "scope-evaluator-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Evaluates the sub-scopes of a scope.
+     *
+     * @param scope     the scope, i.e., space-separated sub-scopes
+     * @param evaluator the evaluator of a single sub-scope
+     * @return the granted sub-scopes, space-separated and in the order of
+     * the scope, or null if none is granted
+     * @throws AceException if a sub-scope cannot be evaluated
+     */
+    public String evaluate(String scope, SubScopeEvaluator evaluator) throws AceException {
+        String[] subScopes = scope.split(" ");
+        Object[] granted = new Object[subScopes.length];
+
+        List<Future<Object>> futures = new ArrayList<>(subScopes.length - 1);
+        for (int i = 1; i < subScopes.length; i++) {
+            String subScope = subScopes[i];
+            futures.add(executor.submit(() -> evaluator.evaluate(subScope)));
+        }
+        AceException failure = null;
+        try {
+            granted[0] = evaluator.evaluate(subScopes[0]);
+        } catch (AceException e) {
+            failure = e;
+        }
+        for (int i = 1; i < subScopes.length; i++) {
+            try {
+                granted[i] = futures.get(i - 1).get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof AceException
+                            ? (AceException) e.getCause()
+                            : new AceException("Unable to evaluate " + subScopes[i]
+                                    + ": " + e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AceException("Interrupted while evaluating " + scope);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+        StringJoiner merged = new StringJoiner(" ");
+        for (Object g : granted) {
+            if (g != null) {
+                merged.add(g.toString());
+            }
+        }
+        return merged.length() == 0 ? null : merged.toString();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,51 @@
+package eu.sifishome.pdp;
+
+import it.cnr.iit.ucs.properties.components.PipProperties;
+import se.sics.ace.AceException;
+import se.sics.ace.as.DBConnector;
+import se.sics.ace.ucs.UcsHelper;
+import se.sics.ace.ucs.properties.UcsPapProperties;
+
+import java.util.List;
+
+/**
+ * UcsHelper evaluating the sub-scopes of a token request concurrently
+ * (see {@link ParallelScopeEvaluator}).
+ * <p>
+ * Each sub-scope has its own policy, so its evaluation is independent
+ * of the others, and the latency of a request follows its slowest
+ * sub-scope rather than the sum of all of them.
+ */
+public class ParallelUcsHelper extends UcsHelper {
+
+    private final ParallelScopeEvaluator scopeEvaluator;
+
+    /**
+     * @param db             the database connector
+     * @param pips           the properties of the PIPs
+     * @param pap            the properties of the PAP
+     * @param policyTemplate the default policy template
+     * @param threads        the maximum number of sub-scopes evaluated concurrently
+     * @throws AceException if the UCS cannot be started
+     */
+    public ParallelUcsHelper(DBConnector db, List<PipProperties> pips, UcsPapProperties pap,
+                             String policyTemplate, int threads) throws AceException {
+        super(db, pips, pap, policyTemplate);
+        this.scopeEvaluator = new ParallelScopeEvaluator(threads);
+    }
+
+    @Override
+    public Object canAccess(String clientId, String aud, Object scope) throws AceException {
+        if (!(scope instanceof String) || ((String) scope).indexOf(' ') == -1) {
+            return super.canAccess(clientId, aud, scope);
+        }
+        return scopeEvaluator.evaluate((String) scope,
+                subScope -> super.canAccess(clientId, aud, subScope));
+    }
+
+    @Override
+    public void close() throws AceException {
+        scopeEvaluator.close();
+        super.close();
+    }
+}
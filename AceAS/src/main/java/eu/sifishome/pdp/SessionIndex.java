@@ -0,0 +1,284 @@
+package eu.sifishome.pdp;
+
+import com.upokecenter.cbor.CBORObject;
+import com.upokecenter.cbor.CBORType;
+import eu.sifishome.db.AceDBConnector;
+import se.sics.ace.Constants;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reverse index from the mutable attributes to the sessions that depend on them.
+ * <p>
+ * A grant is the access of a client to a sub-scope of an audience, and
+ * references the attributes of its policy. A session is an issued token,
+ * identified by its CTI, and depends on the attributes of the grants of
+ * its scope. When an attribute changes, only the sessions returned by
+ * {@link #getAffectedSessions(Collection)} need to be re-evaluated, at a
+ * cost that depends on their number, not on the number of sessions.
+ * <p>
+ * Sessions are added and removed following the issued tokens, see
+ * {@link AceDBConnector.TokenListener}. Sessions that do not depend on any
+ * attribute are not kept.
+ */
+public class SessionIndex implements AceDBConnector.TokenListener {
+
+    /**
+     * A session, i.e., an issued token
+     */
+    public static class Session {
+        private final String cti;
+        private final String clientId;
+        private final Set<String> auds;
+        private final String[] subScopes;
+        private final Set<String> attributes;
+        private final long expiration;
+
+        Session(String cti, String clientId, Set<String> auds, String[] subScopes,
+                Set<String> attributes, long expiration) {
+            this.cti = cti;
+            this.clientId = clientId;
+            this.auds = auds;
+            this.subScopes = subScopes;
+            this.attributes = attributes;
+            this.expiration = expiration;
+        }
+
+        public String getCti() {
+            return cti;
+        }
+
+        public String getClientId() {
+            return clientId;
+        }
+
+        public Set<String> getAuds() {
+            return auds;
+        }
+
+        public String[] getSubScopes() {
+            return subScopes.clone();
+        }
+
+        /**
+         * @return the attributes referenced by the policies of the session
+         */
+        public Set<String> getAttributes() {
+            return attributes;
+        }
+
+        /**
+         * @return the expiration time of the token, in milliseconds,
+         * or Long.MAX_VALUE if the token does not expire
+         */
+        public long getExpiration() {
+            return expiration;
+        }
+    }
+
+    // attributes, by grant
+    private final Map<String, Set<String>> grantAttributes = new ConcurrentHashMap<>();
+    // sessions, by CTI
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    // CTIs of the sessions, by attribute
+    private final Map<String, Set<String>> attributeSessions = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a grant, replacing the previous one with the same client, audience and sub-scope.
+     *
+     * @param clientId   the client
+     * @param aud        the audience
+     * @param subScope   the sub-scope, e.g., "r_temp"
+     * @param attributes the attributes referenced by the policy of the grant
+     */
+    public void addGrant(String clientId, String aud, String subScope, Set<String> attributes) {
+        if (attributes.isEmpty()) {
+            grantAttributes.remove(grantKey(clientId, aud, subScope));
+        } else {
+            grantAttributes.put(grantKey(clientId, aud, subScope),
+                    Collections.unmodifiableSet(new HashSet<>(attributes)));
+        }
+    }
+
+    /**
+     * Removes the grants of a client, e.g., when the client is deleted.
+     * The sessions of the client are kept until their tokens are deleted.
+     *
+     * @param clientId the client
+     */
+    public void removeGrants(String clientId) {
+        String prefix = clientId + '\0';
+        grantAttributes.keySet().removeIf(k -> k.startsWith(prefix));
+    }
+
+    /**
+     * Adds a session, if it depends on any attribute.
+     *
+     * @param cti        the CTI of the token
+     * @param clientId   the client the token was issued to
+     * @param auds       the audiences of the token
+     * @param scope      the scope of the token, e.g., "r_temp r_helloWorld"
+     * @param expiration the expiration time of the token, in milliseconds
+     * @return the session, or null if it does not depend on any attribute
+     */
+    public Session addSession(String cti, String clientId, Set<String> auds, String scope,
+                              long expiration) {
+        String[] subScopes = scope.split(" ");
+        Set<String> attributes = new LinkedHashSet<>();
+        for (String aud : auds) {
+            for (String subScope : subScopes) {
+                Set<String> a = grantAttributes.get(grantKey(clientId, aud, subScope));
+                if (a != null) {
+                    attributes.addAll(a);
+                }
+            }
+        }
+        if (attributes.isEmpty()) {
+            return null;
+        }
+
+        Session session = new Session(cti, clientId, Collections.unmodifiableSet(auds), subScopes,
+                Collections.unmodifiableSet(attributes), expiration);
+        Session previous = sessions.put(cti, session);
+        if (previous != null) {
+            unindex(previous);
+        }
+        for (String attribute : attributes) {
+            attributeSessions.compute(attribute, (k, ctis) -> {
+                if (ctis == null) {
+                    ctis = ConcurrentHashMap.newKeySet();
+                }
+                ctis.add(cti);
+                return ctis;
+            });
+        }
+        return session;
+    }
+
+    /**
+     * Removes a session
+     *
+     * @param cti the CTI of the token
+     * @return the removed session, or null if there was none
+     */
+    public Session removeSession(String cti) {
+        Session session = sessions.remove(cti);
+        if (session != null) {
+            unindex(session);
+        }
+        return session;
+    }
+
+    private void unindex(Session session) {
+        for (String attribute : session.attributes) {
+            attributeSessions.computeIfPresent(attribute, (k, ctis) -> {
+                ctis.remove(session.cti);
+                return ctis.isEmpty() ? null : ctis;
+            });
+        }
+    }
+
+    /**
+     * Removes the sessions whose tokens expired
+     *
+     * @param now the current time, in milliseconds
+     * @return the number of removed sessions
+     */
+    public int removeExpired(long now) {
+        int removed = 0;
+        for (Session s : sessions.values()) {
+            if (s.expiration < now && removeSession(s.cti) != null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @param cti the CTI of the token
+     * @return the session, or null if there is none
+     */
+    public Session getSession(String cti) {
+        return sessions.get(cti);
+    }
+
+    /**
+     * Finds the sessions that depend on any of the given attributes.
+     *
+     * @param attributes the changed attributes
+     * @return the affected sessions
+     */
+    public Set<Session> getAffectedSessions(Collection<String> attributes) {
+        Set<Session> affected = new LinkedHashSet<>();
+        for (String attribute : attributes) {
+            Set<String> ctis = attributeSessions.get(attribute);
+            if (ctis == null) {
+                continue;
+            }
+            for (String cti : ctis) {
+                Session s = sessions.get(cti);
+                if (s != null) {
+                    affected.add(s);
+                }
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * @return the number of sessions
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    @Override
+    public void tokenAdded(String cti, String clientId, Map<Short, CBORObject> claims) {
+        if (claims == null) {
+            return;
+        }
+        CBORObject scope = claims.get(Constants.SCOPE);
+        CBORObject aud = claims.get(Constants.AUD);
+        if (scope == null || scope.getType() != CBORType.TextString || aud == null) {
+            return;
+        }
+        Set<String> auds = new HashSet<>();
+        if (aud.getType() == CBORType.Array) {
+            for (CBORObject a : aud.getValues()) {
+                auds.add(a.AsString());
+            }
+        } else {
+            auds.add(aud.AsString());
+        }
+        CBORObject exp = claims.get(Constants.EXP);
+        addSession(cti, clientId, auds, scope.AsString(),
+                exp == null ? Long.MAX_VALUE : exp.AsInt64Value());
+    }
+
+    @Override
+    public void tokenRemoved(String cti) {
+        removeSession(cti);
+    }
+
+    @Override
+    public void tokensExpired(long now) {
+        removeExpired(now);
+    }
+
+    @Override
+    public String toString() {
+        return "Session index: " + sessions.size() + " sessions, "
+                + grantAttributes.size() + " grants with attributes, "
+                + attributeSessions.size() + " attributes with sessions";
+    }
+
+    private static String grantKey(String clientId, String aud, String subScope) {
+        return clientId + '\0' + aud + '\0' + subScope;
+    }
+}
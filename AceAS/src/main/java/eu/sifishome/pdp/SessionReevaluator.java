@@ -0,0 +1,141 @@
+package eu.sifishome.pdp;
+
+import eu.sifishome.attributes.AttributeStore;
+import se.sics.ace.AceException;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Re-evaluates the sessions affected by the changes of the attributes,
+ * and revokes the tokens of the sessions that are no longer permitted.
+ * <p>
+ * The affected sessions are found through the {@link SessionIndex}, so
+ * the work done for a change depends on the number of sessions whose
+ * policies reference the changed attributes. Re-evaluation runs on a
+ * dedicated thread, since listeners of the {@link AttributeStore} must not block.
+ */
+public class SessionReevaluator implements AttributeStore.Listener, AutoCloseable {
+
+    /**
+     * Evaluates the ongoing conditions of a session
+     */
+    public interface Evaluator {
+        /**
+         * @param session the session
+         * @return true if the session is still permitted
+         * @throws AceException if the session cannot be evaluated
+         */
+        boolean isPermitted(SessionIndex.Session session) throws AceException;
+    }
+
+    /**
+     * Revokes the token of a session
+     */
+    public interface RevocationHandler {
+        /**
+         * @param cti the CTI of the token
+         * @throws AceException if the token cannot be revoked
+         */
+        void revoke(String cti) throws AceException;
+    }
+
+    private final SessionIndex index;
+    private final Evaluator evaluator;
+    private final RevocationHandler revocationHandler;
+    private final ExecutorService executor;
+
+    private final LongAdder changes = new LongAdder();
+    private final LongAdder reevaluated = new LongAdder();
+    private final LongAdder revoked = new LongAdder();
+
+    /**
+     * @param index             the index of the sessions
+     * @param evaluator         the evaluator of the sessions
+     * @param revocationHandler the handler of the revoked tokens
+     */
+    public SessionReevaluator(SessionIndex index, Evaluator evaluator,
+                              RevocationHandler revocationHandler) {
+        this.index = index;
+        this.evaluator = evaluator;
+        this.revocationHandler = revocationHandler;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "session-reevaluator");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void attributesChanged(Map<String, String> changed, long version) {
+        changes.increment();
+        Set<SessionIndex.Session> affected = index.getAffectedSessions(changed.keySet());
+        if (!affected.isEmpty()) {
+            executor.execute(() -> reevaluate(affected));
+        }
+    }
+
+    /**
+     * Re-evaluates the given sessions, revoking the ones no longer permitted.
+     *
+     * @param sessions the sessions
+     * @return the number of revoked tokens
+     */
+    public int reevaluate(Set<SessionIndex.Session> sessions) {
+        int revokedNow = 0;
+        for (SessionIndex.Session s : sessions) {
+            reevaluated.increment();
+            try {
+                if (evaluator.isPermitted(s)) {
+                    continue;
+                }
+                // skip the sessions already removed, e.g., by a previous change
+                if (index.getSession(s.getCti()) != s) {
+                    continue;
+                }
+                // the session stays indexed until its token is revoked,
+                // so that a failed revocation is retried at the next change
+                revocationHandler.revoke(s.getCti());
+                index.removeSession(s.getCti());
+                revoked.increment();
+                revokedNow++;
+            } catch (AceException e) {
+                System.err.println("Unable to re-evaluate the session of token "
+                        + s.getCti() + ": " + e.getMessage());
+            }
+        }
+        return revokedNow;
+    }
+
+    public long getReevaluated() {
+        return reevaluated.sum();
+    }
+
+    public long getRevoked() {
+        return revoked.sum();
+    }
+
+    /**
+     * Stops the re-evaluation, waiting for the pending one to complete
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Session re-evaluation: " + changes.sum() + " attribute changes, "
+                + reevaluated.sum() + " sessions re-evaluated, "
+                + revoked.sum() + " tokens revoked";
+    }
+}
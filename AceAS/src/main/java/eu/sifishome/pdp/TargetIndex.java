@@ -0,0 +1,99 @@
+package eu.sifishome.pdp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Predicate;
+
+/**
+ * Index of compiled policies by the subject, resource and action of their target.
+ * <p>
+ * A policy whose target does not constrain the subject, the resource or
+ * the action is indexed under a wildcard for it. Finding the candidate
+ * policies of a request only looks up the combinations of values and
+ * wildcards used by at least one policy, so usually a single one, and
+ * does not depend on the number of policies.
+ *
+ * @param <T> the type of the values associated to the policies
+ */
+public class TargetIndex<T> {
+
+    private static final String ANY = "\u0000*";
+    private static final int ANY_SUBJECT = 1;
+    private static final int ANY_RESOURCE = 2;
+    private static final int ANY_ACTION = 4;
+
+    // values, by target and policy id
+    private final Map<String, Map<String, T>> index = new ConcurrentHashMap<>();
+    // number of policies, by combination of wildcards
+    private final AtomicIntegerArray patterns = new AtomicIntegerArray(8);
+
+    /**
+     * Adds a policy. A policy with the same id must be removed first.
+     *
+     * @param policy the policy
+     * @param value  the value associated to the policy
+     */
+    public void put(CompiledPolicy policy, T value) {
+        patterns.incrementAndGet(pattern(policy));
+        index.computeIfAbsent(key(policy.getSubject(), policy.getResource(), policy.getAction()),
+                k -> new ConcurrentHashMap<>()).put(policy.getId(), value);
+    }
+
+    /**
+     * Removes a policy
+     *
+     * @param policy the policy
+     */
+    public void remove(CompiledPolicy policy) {
+        boolean[] removed = new boolean[1];
+        index.computeIfPresent(key(policy.getSubject(), policy.getResource(), policy.getAction()),
+                (k, values) -> {
+                    removed[0] = values.remove(policy.getId()) != null;
+                    return values.isEmpty() ? null : values;
+                });
+        if (removed[0]) {
+            patterns.decrementAndGet(pattern(policy));
+        }
+    }
+
+    /**
+     * Tests the candidate policies of a request, until one satisfies the predicate.
+     * The resource server of the target is not indexed, and has to be tested
+     * by the predicate.
+     *
+     * @return true if a candidate policy satisfies the predicate
+     */
+    public boolean anyMatch(String subject, String resource, String action, Predicate<T> predicate) {
+        for (int p = 0; p < 8; p++) {
+            if (patterns.get(p) == 0) {
+                continue;
+            }
+            Map<String, T> values = index.get(key(
+                    (p & ANY_SUBJECT) == 0 ? subject : null,
+                    (p & ANY_RESOURCE) == 0 ? resource : null,
+                    (p & ANY_ACTION) == 0 ? action : null));
+            if (values == null) {
+                continue;
+            }
+            for (T value : values.values()) {
+                if (predicate.test(value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int pattern(CompiledPolicy policy) {
+        return (policy.getSubject() == null ? ANY_SUBJECT : 0)
+                | (policy.getResource() == null ? ANY_RESOURCE : 0)
+                | (policy.getAction() == null ? ANY_ACTION : 0);
+    }
+
+    private static String key(String subject, String resource, String action) {
+        return (subject == null ? ANY : subject) + '\u0000'
+                + (resource == null ? ANY : resource) + '\u0000'
+                + (action == null ? ANY : action);
+    }
+}
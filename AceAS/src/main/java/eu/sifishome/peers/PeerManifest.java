@@ -0,0 +1,311 @@
+package eu.sifishome.peers;
+
+import com.upokecenter.cbor.CBORObject;
+import com.upokecenter.cbor.CBORType;
+import se.sics.ace.AceException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+
+/**
+ * Reader of a manifest of peers to be registered at the AS.
+ * <p>
+ * The manifest is either a CSV file or, if its name ends with '.cbor', a
+ * CBOR sequence of maps. Each CSV line has the form
+ * <pre>
+ *     type,name,scope,aud,senderId,masterSecret[,tokenKey]
+ * </pre>
+ * where type is 'C' for a Client and 'R' for a Resource Server. Scopes
+ * and audiences are space-separated; a Client with more scopes, each for a
+ * different audience, separates them with '|'. Empty lines and lines starting
+ * with '#' are ignored. The keys of the CBOR maps are the same as the CSV
+ * columns, and "scope" and "aud" can also be arrays of text strings.
+ * <p>
+ * The manifest is streamed in batches. Each batch is parsed in parallel
+ * while the previous one is being registered. Batches only overlap parsing
+ * and registration: within a batch, the peers are still registered one by
+ * one through the DBConnector, which owns the schema of the peer tables.
+ */
+public class PeerManifest {
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private static final String CBOR_EXTENSION = ".cbor";
+    private static final String[] COLUMNS =
+            {"type", "name", "scope", "aud", "senderId", "masterSecret", "tokenKey"};
+
+    /**
+     * Registers a batch of peers
+     */
+    public interface BatchHandler {
+        void accept(List<Client> clients, List<ResourceServer> resourceServers) throws AceException;
+    }
+
+    /**
+     * Provisioning statistics
+     */
+    public static class Stats {
+        private final int clients;
+        private final int resourceServers;
+        private final long elapsedMillis;
+
+        Stats(int clients, int resourceServers, long elapsedMillis) {
+            this.clients = clients;
+            this.resourceServers = resourceServers;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public int getClients() {
+            return clients;
+        }
+
+        public int getResourceServers() {
+            return resourceServers;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * @return the number of peers registered per second
+         */
+        public double getThroughput() {
+            return elapsedMillis == 0 ? 0.0
+                    : (clients + resourceServers) * 1000.0 / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Provisioned " + clients + " Clients and " + resourceServers
+                    + " Resource Servers in " + elapsedMillis + " ms "
+                    + String.format("(%.1f peers/s)", getThroughput());
+        }
+    }
+
+    private static class Batch {
+        final List<Client> clients = new ArrayList<>();
+        final List<ResourceServer> resourceServers = new ArrayList<>();
+    }
+
+    private PeerManifest() {
+    }
+
+    /**
+     * Reads the manifest and passes its peers to the handler, in batches.
+     *
+     * @param file      the manifest
+     * @param batchSize the maximum number of peers in a batch
+     * @param handler   the handler registering the peers
+     * @return the provisioning statistics
+     * @throws AceException if the manifest cannot be read or is malformed,
+     *                      or if the handler fails
+     */
+    public static Stats load(File file, int batchSize, BatchHandler handler) throws AceException {
+        if (batchSize < 1) {
+            throw new AceException("Invalid batch size: " + batchSize);
+        }
+        long start = System.nanoTime();
+        int clients = 0;
+        int resourceServers = 0;
+
+        try (RecordReader reader = file.getName().endsWith(CBOR_EXTENSION)
+                ? new CborReader(file) : new CsvReader(file)) {
+            CompletableFuture<Batch> next = parseAsync(reader.read(batchSize));
+            while (next != null) {
+                Batch batch = join(next);
+                List<String[]> records = reader.read(batchSize);
+                next = records.isEmpty() ? null : parseAsync(records);
+
+                handler.accept(batch.clients, batch.resourceServers);
+                clients += batch.clients.size();
+                resourceServers += batch.resourceServers.size();
+            }
+        } catch (IOException e) {
+            throw new AceException("Unable to read the peer manifest " + file + ": " + e.getMessage());
+        }
+        return new Stats(clients, resourceServers, (System.nanoTime() - start) / 1000000L);
+    }
+
+    private static CompletableFuture<Batch> parseAsync(List<String[]> records) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<Object> peers = records.parallelStream()
+                    .map(PeerManifest::parseRecord)
+                    .collect(Collectors.toList());
+            Batch batch = new Batch();
+            for (Object p : peers) {
+                if (p instanceof Client) {
+                    batch.clients.add((Client) p);
+                } else {
+                    batch.resourceServers.add((ResourceServer) p);
+                }
+            }
+            return batch;
+        });
+    }
+
+    private static Batch join(CompletableFuture<Batch> future) throws AceException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw new AceException(cause instanceof ManifestException
+                    ? cause.getMessage() : "Invalid peer manifest: " + cause);
+        }
+    }
+
+    /**
+     * Parses a record into a Client or a ResourceServer.
+     */
+    static Object parseRecord(String[] r) {
+        try {
+            if (r[0] == null || r[1] == null) {
+                throw new AceException("missing type or name");
+            }
+            String name = r[1];
+            switch (r[0].trim().toUpperCase()) {
+                case "C":
+                    List<String> scopes = Arrays.asList(r[2] == null ? new String[0] : r[2].split("\\|"));
+                    List<String> auds = Arrays.asList(r[3] == null ? new String[0] : r[3].split("\\|"));
+                    if (scopes.isEmpty() || scopes.size() != auds.size()) {
+                        throw new AceException("each scope requires an audience");
+                    }
+                    return new Client(name, trim(scopes), trim(auds), r[4], r[5]);
+                case "R":
+                    // the AS automatically adds an audience with the resource server name
+                    String aud = r[3] == null ? "" : Arrays.stream(r[3].trim().split(" +"))
+                            .filter(a -> !a.isEmpty() && !a.equals(name))
+                            .collect(Collectors.joining(" "));
+                    if (r[6] == null) {
+                        throw new AceException("missing token key");
+                    }
+                    return new ResourceServer(name, r[2], aud, r[4], r[5], r[6]);
+                default:
+                    throw new AceException("unknown peer type '" + r[0] + "'");
+            }
+        } catch (AceException | RuntimeException e) {
+            throw new ManifestException("Invalid peer '" + r[1] + "' in the manifest: " + e.getMessage());
+        }
+    }
+
+    private static List<String> trim(List<String> values) {
+        return values.stream().map(String::trim).collect(Collectors.toList());
+    }
+
+    private static class ManifestException extends RuntimeException {
+        ManifestException(String message) {
+            super(message);
+        }
+    }
+
+    private interface RecordReader extends AutoCloseable {
+        /**
+         * @return up to max records, or an empty list at the end of the manifest
+         */
+        List<String[]> read(int max) throws IOException, AceException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private static class CsvReader implements RecordReader {
+        private final BufferedReader in;
+
+        CsvReader(File file) throws IOException {
+            this.in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public List<String[]> read(int max) throws IOException {
+            List<String[]> records = new ArrayList<>(max);
+            String line;
+            while (records.size() < max && (line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",", -1);
+                String[] record = new String[COLUMNS.length];
+                for (int i = 0; i < record.length && i < fields.length; i++) {
+                    record[i] = fields[i].trim().isEmpty() ? null : fields[i].trim();
+                }
+                records.add(record);
+            }
+            return records;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class CborReader implements RecordReader {
+        private final InputStream in;
+
+        CborReader(File file) throws IOException {
+            this.in = new BufferedInputStream(new FileInputStream(file));
+        }
+
+        @Override
+        public List<String[]> read(int max) throws IOException, AceException {
+            List<String[]> records = new ArrayList<>(max);
+            while (records.size() < max) {
+                in.mark(1);
+                if (in.read() == -1) {
+                    break;
+                }
+                in.reset();
+                CBORObject map;
+                try {
+                    map = CBORObject.Read(in);
+                } catch (RuntimeException e) {
+                    throw new AceException("Invalid CBOR in the peer manifest: " + e.getMessage());
+                }
+                if (map.getType() != CBORType.Map) {
+                    throw new AceException("Each peer in the manifest must be a CBOR map");
+                }
+                String[] record = new String[COLUMNS.length];
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    record[i] = toText(map.get(COLUMNS[i]), i == 2 || i == 3);
+                }
+                records.add(record);
+            }
+            return records;
+        }
+
+        private static String toText(CBORObject value, boolean isList) throws AceException {
+            if (value == null || value.isNull()) {
+                return null;
+            }
+            if (isList && value.getType() == CBORType.Array) {
+                List<String> items = new ArrayList<>();
+                for (CBORObject item : value.getValues()) {
+                    items.add(item.AsString());
+                }
+                return String.join("|", items);
+            }
+            if (value.getType() != CBORType.TextString) {
+                throw new AceException("Peer manifest values must be text strings");
+            }
+            return value.AsString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
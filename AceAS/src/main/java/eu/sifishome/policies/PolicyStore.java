@@ -0,0 +1,461 @@
+package eu.sifishome.policies;
+
+import com.upokecenter.cbor.CBORException;
+import com.upokecenter.cbor.CBORObject;
+import se.sics.ace.AceException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Store of XACML policies, kept in a single append-only file.
+ * <p>
+ * Each record is framed as
+ * <pre>
+ * | record length (4 bytes) | header length (4 bytes) | header | policy |
+ * </pre>
+ * where the header is a CBOR array [op, id, subject, resource, action],
+ * and the policy is UTF-8 encoded. Removing a policy appends a record
+ * without policy. The offsets of the policies are indexed in memory, by
+ * id and by subject, resource and action, so that reading a policy is a
+ * single positional read. The index is saved when the store is closed, so
+ * that opening the store only reads the index and the records appended
+ * after it was saved. The file is compacted when most of it is made of
+ * replaced or removed policies.
+ * <p>
+ * Reads share a read lock, while changes, including the compaction that
+ * replaces the file and the offsets of all the policies, take the write lock,
+ * so that a read never uses an offset with a file it does not belong to.
+ */
+public class PolicyStore implements AutoCloseable {
+
+    public static final String FILE_NAME = "policies.log";
+    public static final String INDEX_FILE_NAME = "policies.idx";
+
+    /**
+     * Value of the subject, resource or action of a policy that applies to any
+     */
+    public static final String ANY = "*";
+
+    private static final int PUT = 1;
+    private static final int REMOVE = 2;
+    private static final int FRAME_HEADER = 8;
+    private static final long MIN_COMPACTION_SIZE = 1 << 20;
+
+    /**
+     * A stored policy
+     */
+    private static class Entry {
+        final String subject;
+        final String resource;
+        final String action;
+        final long offset;
+        final int length;
+
+        Entry(String subject, String resource, String action, long offset, int length) {
+            this.subject = subject;
+            this.resource = resource;
+            this.action = action;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File file;
+    private final File indexFile;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // guarded by the lock, like end and garbage
+    private FileChannel channel;
+    private long end;
+    private long garbage = 0;
+
+    // policies, by id
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // ids of the policies, by subject, resource and action
+    private final Map<String, Set<String>> targets = new ConcurrentHashMap<>();
+    // ids of the policies, by subject
+    private final Map<String, Set<String>> subjects = new ConcurrentHashMap<>();
+
+    /**
+     * Opens the store in the given directory, creating it if it does not exist.
+     *
+     * @param dir the directory of the store
+     * @throws AceException if the store cannot be read
+     */
+    public PolicyStore(File dir) throws AceException {
+        this.file = new File(dir, FILE_NAME);
+        this.indexFile = new File(dir, INDEX_FILE_NAME);
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            load(loadIndex());
+        } catch (IOException e) {
+            throw new AceException("Unable to open the policy store: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads the saved index, if any, and deletes it, since it is outdated
+     * as soon as a record is appended.
+     *
+     * @return the position of the first record not covered by the index
+     */
+    private long loadIndex() throws IOException {
+        if (!indexFile.isFile()) {
+            return 0;
+        }
+        long covered = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile)))) {
+            long indexed = in.readLong();
+            if (indexed <= channel.size()) {
+                garbage = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String id = in.readUTF();
+                    apply(PUT, id, in.readUTF(), in.readUTF(), in.readUTF(),
+                            in.readLong(), in.readInt());
+                }
+                covered = indexed;
+            }
+        } catch (IOException e) {
+            // the records are scanned instead
+            clear();
+            covered = 0;
+        }
+        Files.delete(indexFile.toPath());
+        return covered;
+    }
+
+    private void saveIndex() throws IOException {
+        File tmp = new File(indexFile.getParentFile(), "." + INDEX_FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)))) {
+            out.writeLong(end);
+            out.writeLong(garbage);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> p : entries.entrySet()) {
+                Entry e = p.getValue();
+                out.writeUTF(p.getKey());
+                out.writeUTF(e.subject);
+                out.writeUTF(e.resource);
+                out.writeUTF(e.action);
+                out.writeLong(e.offset);
+                out.writeInt(e.length);
+            }
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void clear() {
+        entries.clear();
+        targets.clear();
+        subjects.clear();
+        garbage = 0;
+    }
+
+    private void load(long position) throws IOException {
+        long size = channel.size();
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER);
+        while (position + FRAME_HEADER <= size) {
+            frame.clear();
+            readFully(frame, position);
+            frame.flip();
+            int recordLength = frame.getInt();
+            int headerLength = frame.getInt();
+            if (recordLength < headerLength || headerLength <= 0
+                    || position + FRAME_HEADER + recordLength > size) {
+                break;
+            }
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            readFully(header, position + FRAME_HEADER);
+            CBORObject h;
+            try {
+                h = CBORObject.DecodeFromBytes(header.array());
+            } catch (CBORException e) {
+                break;
+            }
+            long policyOffset = position + FRAME_HEADER + headerLength;
+            apply(h.get(0).AsInt32(), h.get(1).AsString(), h.get(2).AsString(),
+                    h.get(3).AsString(), h.get(4).AsString(),
+                    policyOffset, recordLength - headerLength);
+            position += FRAME_HEADER + recordLength;
+        }
+        if (position < size) {
+            // a record was partially written when the AS stopped
+            channel.truncate(position);
+        }
+        end = position;
+    }
+
+    private void apply(int op, String id, String subject, String resource, String action,
+                       long offset, int length) {
+        Entry previous = op == PUT
+                ? entries.put(id, new Entry(subject, resource, action, offset, length))
+                : entries.remove(id);
+        if (previous != null) {
+            unindex(id, previous);
+            garbage += FRAME_HEADER + previous.length;
+        }
+        if (op == PUT) {
+            index(targets, targetKey(subject, resource, action), id);
+            index(subjects, subject, id);
+        } else {
+            garbage += FRAME_HEADER;
+        }
+    }
+
+    private void unindex(String id, Entry e) {
+        unindex(targets, targetKey(e.subject, e.resource, e.action), id);
+        unindex(subjects, e.subject, id);
+    }
+
+    private static void index(Map<String, Set<String>> index, String key, String id) {
+        index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(id);
+    }
+
+    private static void unindex(Map<String, Set<String>> index, String key, String id) {
+        index.computeIfPresent(key, (k, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    /**
+     * Adds a policy, replacing the policy with the same id, if any.
+     *
+     * @param id       the id of the policy
+     * @param subject  the subject of the policy, or null if it applies to any
+     * @param resource the resource of the policy, or null if it applies to any
+     * @param action   the action of the policy, or null if it applies to any
+     * @param policy   the XACML policy
+     * @throws AceException if the policy cannot be written
+     */
+    public void put(String id, String subject, String resource, String action,
+                    String policy) throws AceException {
+        lock.writeLock().lock();
+        try {
+            append(PUT, id, orAny(subject), orAny(resource), orAny(action),
+                    policy.getBytes(StandardCharsets.UTF_8));
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a policy
+     *
+     * @param id the id of the policy
+     * @return true if the policy was removed, false if it did not exist
+     * @throws AceException if the removal cannot be written
+     */
+    public boolean remove(String id) throws AceException {
+        lock.writeLock().lock();
+        try {
+            Entry e = entries.get(id);
+            if (e == null) {
+                return false;
+            }
+            append(REMOVE, id, e.subject, e.resource, e.action, new byte[0]);
+            compactIfNeeded();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void append(int op, String id, String subject, String resource, String action,
+                        byte[] policy) throws AceException {
+        byte[] header = CBORObject.NewArray().Add(op).Add(id).Add(subject).Add(resource).Add(action)
+                .EncodeToBytes();
+        ByteBuffer record = ByteBuffer.allocate(FRAME_HEADER + header.length + policy.length);
+        record.putInt(header.length + policy.length).putInt(header.length).put(header).put(policy);
+        record.flip();
+        try {
+            long position = end;
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+            apply(op, id, subject, resource, action, end + FRAME_HEADER + header.length, policy.length);
+            end = position;
+        } catch (IOException e) {
+            throw new AceException("Unable to write policy " + id + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param id the id of the policy
+     * @return the policy, or null if it does not exist
+     * @throws AceException if the policy cannot be read
+     */
+    public String get(String id) throws AceException {
+        lock.readLock().lock();
+        try {
+            Entry e = entries.get(id);
+            if (e == null) {
+                return null;
+            }
+            ByteBuffer policy = ByteBuffer.allocate(e.length);
+            readFully(policy, e.offset);
+            return new String(policy.array(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new AceException("Unable to read policy " + id + ": " + e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the policies with the given subject, resource and action.
+     * Use {@link #ANY} to find the policies that apply to any value.
+     *
+     * @return the ids of the policies
+     */
+    public Set<String> find(String subject, String resource, String action) {
+        Set<String> ids = targets.get(targetKey(subject, resource, action));
+        return ids == null ? Collections.emptySet() : Collections.unmodifiableSet(ids);
+    }
+
+    /**
+     * Finds the policies of a subject, whatever their resource and action.
+     *
+     * @param subject the subject, or {@link #ANY}
+     * @return the ids of the policies
+     */
+    public Set<String> findBySubject(String subject) {
+        Set<String> ids = subjects.get(subject);
+        return ids == null ? Collections.emptySet() : new HashSet<>(ids);
+    }
+
+    /**
+     * @return the number of policies
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Compacts the file if needed. Called with the write lock held.
+     */
+    private void compactIfNeeded() throws AceException {
+        if (end > MIN_COMPACTION_SIZE && garbage > end / 2) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Rewrites the file with the current policies only
+     *
+     * @throws AceException if the file cannot be rewritten
+     */
+    public void compact() throws AceException {
+        lock.writeLock().lock();
+        try {
+            rewrite();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void rewrite() throws AceException {
+        File tmp = new File(file.getParentFile(), "." + FILE_NAME + ".tmp");
+        Map<String, Entry> compacted = new ConcurrentHashMap<>();
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = 0;
+            for (Map.Entry<String, Entry> p : entries.entrySet()) {
+                Entry e = p.getValue();
+                byte[] header = CBORObject.NewArray().Add(PUT).Add(p.getKey()).Add(e.subject)
+                        .Add(e.resource).Add(e.action).EncodeToBytes();
+                ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + header.length);
+                frame.putInt(header.length + e.length).putInt(header.length).put(header);
+                frame.flip();
+                while (frame.hasRemaining()) {
+                    position += out.write(frame);
+                }
+                compacted.put(p.getKey(), new Entry(e.subject, e.resource, e.action, position, e.length));
+                long copied = 0;
+                while (copied < e.length) {
+                    copied += channel.transferTo(e.offset + copied, e.length - copied, out);
+                }
+                position += e.length;
+            }
+            out.force(true);
+            channel.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            entries.putAll(compacted);
+            end = position;
+            garbage = 0;
+        } catch (IOException e) {
+            throw new AceException("Unable to compact the policy store: " + e.getMessage());
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    /**
+     * Writes the pending changes to disk, saves the index and closes the store
+     */
+    @Override
+    public void close() throws AceException {
+        lock.writeLock().lock();
+        try {
+            channel.force(true);
+            channel.close();
+            saveIndex();
+        } catch (IOException e) {
+            throw new AceException("Unable to close the policy store: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return "Policy store: " + entries.size() + " policies, " + end + " bytes, "
+                    + garbage + " bytes of replaced or removed policies";
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static String orAny(String value) {
+        return value == null ? ANY : value;
+    }
+
+    private static String targetKey(String subject, String resource, String action) {
+        return subject + '\u0000' + resource + '\u0000' + action;
+    }
+}
@@ -0,0 +1,227 @@
+package eu.sifishome.policies;
+
+import eu.sifishome.AceAS;
+import eu.sifishome.Utils;
+import se.sics.ace.AceException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * XACML policy template with placeholders, e.g., SUBJECT_HERE.
+ * <p>
+ * Templates are read from the 'policy-templates' resources once, and
+ * kept split at their placeholders, so that rendering a policy only
+ * concatenates the fixed parts with the values of the placeholders.
+ * Templates are immutable and can be rendered concurrently.
+ */
+public final class PolicyTemplate {
+
+    public static final String POLICY_ID = "POLICYID_HERE";
+    public static final String SUBJECT = "SUBJECT_HERE";
+    public static final String RESOURCE_SERVER = "RESOURCESERVER_HERE";
+    public static final String RESOURCE = "RESOURCE_HERE";
+
+    private static final String[] PLACEHOLDERS = {POLICY_ID, SUBJECT, RESOURCE_SERVER, RESOURCE};
+    private static final String TEMPLATES_DIR = "policy-templates";
+
+    public static final String ENVIRONMENT_PREFIX = "urn:oasis:names:tc:xacml:3.0:environment:";
+
+    private static final String ONGOING_CONDITION = "<Condition DecisionTime=\"ongoing\">";
+    private static final String AND_FUNCTION = "<Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:and\">";
+    private static final String ATTRIBUTE_ID_HERE = "ATTRIBUTEID_HERE";
+    private static final String ATTRIBUTE_MATCH =
+            "\t\t\t\t<Apply\n" +
+            "\t\t\t\t\t\tFunctionId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\" >\n" +
+            "\t\t\t\t\t<Apply\n" +
+            "\t\t\t\t\t\t\tFunctionId=\"urn:oasis:names:tc:xacml:1.0:function:string-one-and-only\" >\n" +
+            "\t\t\t\t\t\t<AttributeDesignator\n" +
+            "\t\t\t\t\t\t\t\tAttributeId=\"" + ATTRIBUTE_ID_HERE + "\"\n" +
+            "\t\t\t\t\t\t\t\tCategory=\"urn:oasis:names:tc:xacml:3.0:attribute-category:environment\"\n" +
+            "\t\t\t\t\t\t\t\tDataType=\"http://www.w3.org/2001/XMLSchema#string\"\n" +
+            "\t\t\t\t\t\t\t\tMustBePresent=\"true\">\n" +
+            "\t\t\t\t\t\t</AttributeDesignator>\n" +
+            "\t\t\t\t\t</Apply>\n" +
+            "\t\t\t\t\t<AttributeValue\n" +
+            "\t\t\t\t\t\t\tDataType=\"http://www.w3.org/2001/XMLSchema#string\" >y</AttributeValue>\n" +
+            "\t\t\t\t</Apply>\n";
+
+    private static final Map<String, PolicyTemplate> cache = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final String content;
+    // the fixed parts of the template, one more than the placeholders
+    private final String[] segments;
+    private final String[] placeholders;
+
+    private PolicyTemplate(String name, String content) {
+        this.name = name;
+        this.content = content;
+
+        List<String> segments = new ArrayList<>();
+        List<String> placeholders = new ArrayList<>();
+        int from = 0;
+        while (true) {
+            int next = -1;
+            String placeholder = null;
+            for (String p : PLACEHOLDERS) {
+                int i = content.indexOf(p, from);
+                if (i != -1 && (next == -1 || i < next)) {
+                    next = i;
+                    placeholder = p;
+                }
+            }
+            if (placeholder == null) {
+                break;
+            }
+            segments.add(content.substring(from, next));
+            placeholders.add(placeholder);
+            from = next + placeholder.length();
+        }
+        segments.add(content.substring(from));
+
+        this.segments = segments.toArray(new String[0]);
+        this.placeholders = placeholders.toArray(new String[0]);
+    }
+
+    /**
+     * Gets a template from the 'policy-templates' resources,
+     * reading it only the first time.
+     *
+     * @param name the name of the template, e.g., "policy_template_temp"
+     * @return the template
+     * @throws AceException if the template cannot be found
+     */
+    public static PolicyTemplate get(String name) throws AceException {
+        PolicyTemplate template = cache.get(name);
+        if (template != null) {
+            return template;
+        }
+        try (InputStream input = Utils.accessFile(AceAS.class, TEMPLATES_DIR + File.separator + name)) {
+            if (input == null) {
+                throw new AceException("Policy template " + name + " not found");
+            }
+            template = new PolicyTemplate(name, Utils.readContent(input));
+        } catch (IOException e) {
+            throw new AceException("Unable to read policy template " + name + ": " + e.getMessage());
+        }
+        PolicyTemplate previous = cache.putIfAbsent(name, template);
+        return previous == null ? template : previous;
+    }
+
+    /**
+     * Gets a template from the 'policy-templates' resources, extended with
+     * further mutable attributes. The ongoing condition of the template
+     * requires each attribute '&lt;attributePrefix&gt;i', with i from 2 to
+     * numAttributes, to be equal to 'y', in addition to its own condition.
+     * Extended templates are generated only the first time.
+     *
+     * @param name            the name of the template, e.g., "policy_template_temp"
+     * @param attributePrefix the prefix of the names of the attributes,
+     *                        e.g., "attribute-temp"
+     * @param numAttributes   the number of mutable attributes
+     * @return the template
+     * @throws AceException if the template cannot be found, or it has no
+     *                      ongoing condition
+     */
+    public static PolicyTemplate get(String name, String attributePrefix, int numAttributes)
+            throws AceException {
+        if (numAttributes <= 1) {
+            return get(name);
+        }
+        String extendedName = name + "_" + numAttributes + "_attributes";
+        PolicyTemplate template = cache.get(extendedName);
+        if (template != null) {
+            return template;
+        }
+
+        String content = get(name).getContent();
+        int condition = content.indexOf(ONGOING_CONDITION);
+        int and = condition == -1 ? -1 : content.indexOf(AND_FUNCTION, condition);
+        if (and == -1) {
+            throw new AceException("Policy template " + name + " has no ongoing condition");
+        }
+        int insertAt = content.indexOf('\n', and) + 1;
+
+        StringBuilder sb = new StringBuilder(content.length() + numAttributes * ATTRIBUTE_MATCH.length());
+        sb.append(content, 0, insertAt);
+        for (int i = 2; i <= numAttributes; i++) {
+            sb.append(ATTRIBUTE_MATCH.replace(ATTRIBUTE_ID_HERE, ENVIRONMENT_PREFIX + attributePrefix + i));
+        }
+        sb.append(content, insertAt, content.length());
+
+        template = new PolicyTemplate(extendedName, sb.toString());
+        PolicyTemplate previous = cache.putIfAbsent(extendedName, template);
+        return previous == null ? template : previous;
+    }
+
+    /**
+     * Creates a template from its content, without caching it.
+     *
+     * @param name    the name of the template
+     * @param content the XACML content, with placeholders
+     * @return the template
+     */
+    public static PolicyTemplate of(String name, String content) {
+        return new PolicyTemplate(name, content);
+    }
+
+    /**
+     * Replaces the placeholders with the given values. Placeholders without
+     * a value are kept, so that they can be filled in later, e.g., by the UCS.
+     *
+     * @param values the values, by placeholder
+     * @return the rendered policy
+     */
+    public String render(Map<String, String> values) {
+        StringBuilder sb = new StringBuilder(content.length() + 64);
+        for (int i = 0; i < placeholders.length; i++) {
+            sb.append(segments[i]);
+            String value = values.get(placeholders[i]);
+            sb.append(value != null ? value : placeholders[i]);
+        }
+        sb.append(segments[segments.length - 1]);
+        return sb.toString();
+    }
+
+    /**
+     * Finds the environment attributes referenced by a policy, e.g.,
+     * 'thermometer-reachable' for the policies of 'temp'.
+     *
+     * @param policy the XACML policy
+     * @return the names of the attributes, without {@link #ENVIRONMENT_PREFIX}
+     */
+    public static Set<String> getEnvironmentAttributes(String policy) {
+        Set<String> attributes = new LinkedHashSet<>();
+        String attributeId = "AttributeId=\"" + ENVIRONMENT_PREFIX;
+        int from = policy.indexOf(attributeId);
+        while (from != -1) {
+            from += attributeId.length();
+            int end = policy.indexOf('"', from);
+            if (end == -1) {
+                break;
+            }
+            attributes.add(policy.substring(from, end));
+            from = policy.indexOf(attributeId, end);
+        }
+        return attributes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the content of the template, with all its placeholders
+     */
+    public String getContent() {
+        return content;
+    }
+}
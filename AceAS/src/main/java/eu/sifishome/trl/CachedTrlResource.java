@@ -0,0 +1,285 @@
+package eu.sifishome.trl;
+
+import com.upokecenter.cbor.CBORObject;
+import eu.sifishome.db.AceDBConnector;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.Resource;
+import se.sics.ace.AceException;
+import se.sics.ace.coap.CoapReq;
+
+import java.lang.reflect.Proxy;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Cache of the responses of the TRL endpoint of the AS.
+ * <p>
+ * It replaces the TRL resource in the resource tree, and delegates to it
+ * the requests it cannot answer, as well as the observations. The TRL
+ * content depends on the requesting peer, so the encoded responses are
+ * kept per peer and per query, e.g., full query or diff query, and
+ * polling the TRL again only copies the cached payload.
+ * <p>
+ * The TRL only changes when tokens are deleted or expire, so the whole
+ * cache is invalidated when the database reports it (see
+ * {@link AceDBConnector.TokenListener}), and the observers of the TRL are
+ * notified at that time. Tokens deleted together, e.g., by the reclamation
+ * of the expired tokens, invalidate the cache once.
+ * <p>
+ * Responses carry an ETag, derived from their payload. A peer polling
+ * with the ETag of the response it last received gets a 2.03 (Valid)
+ * response without payload, if the TRL it would receive is unchanged.
+ */
+public class CachedTrlResource extends CoapResource implements AceDBConnector.TokenListener {
+
+    public static final int MAX_ENTRIES = 10000;
+    public static final int ETAG_LENGTH = 8;
+
+    /**
+     * An encoded response, valid until the TRL changes
+     */
+    private static class Entry {
+        final long version;
+        final CoAP.ResponseCode code;
+        final OptionSet options;
+        final byte[] payload;
+        final byte[] etag;
+
+        Entry(long version, Response response) {
+            this.version = version;
+            this.code = response.getCode();
+            this.options = new OptionSet(response.getOptions()).removeObserve();
+            this.payload = response.getPayload();
+            if (code != CoAP.ResponseCode.CONTENT) {
+                this.etag = null;
+            } else if (options.getETagCount() > 0) {
+                this.etag = options.getETags().get(0);
+            } else {
+                this.etag = computeETag(payload);
+                options.addETag(etag);
+            }
+        }
+    }
+
+    private final Resource trl;
+
+    // increased when the TRL changes
+    private final AtomicLong version = new AtomicLong();
+    // responses, by peer and query
+    private final Map<String, Entry> responses = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder valid = new LongAdder();
+
+    /**
+     * @param trl the TRL resource of the AS
+     */
+    public CachedTrlResource(Resource trl) {
+        super(trl.getName());
+        this.trl = trl;
+        setObservable(trl.isObservable());
+        getAttributes().setTitle("Cached TRL Resource");
+    }
+
+    /**
+     * Replaces the TRL resource of a server with a cache of its responses
+     *
+     * @param add  adds a resource to the root of the server
+     * @param name the name of the TRL resource, e.g., "trl"
+     * @return the cache
+     * @throws AceException if the server has no TRL resource
+     */
+    public static CachedTrlResource install(Consumer<Resource> add, String name) throws AceException {
+        // the server does not expose its root, so it is reached from a probe resource
+        CoapResource probe = new CoapResource("trl-cache-probe");
+        add.accept(probe);
+        Resource root = probe.getParent();
+        if (root == null) {
+            throw new AceException("Unable to find the root resource");
+        }
+        root.delete(probe);
+        Resource trl = root.getChild(name);
+        if (trl == null) {
+            throw new AceException("No TRL resource named '" + name + "'");
+        }
+        CachedTrlResource cached = new CachedTrlResource(trl);
+        add.accept(cached);
+        return cached;
+    }
+
+    @Override
+    public void handleRequest(Exchange exchange) {
+        Request request = exchange.getRequest();
+        if (request.getCode() != CoAP.Code.GET || request.getOptions().hasObserve()) {
+            // registrations and notifications are handled by the TRL resource
+            trl.handleRequest(exchange);
+            return;
+        }
+        String key = getPeer(request) + '\u0000' + request.getOptions().getUriQueryString();
+        long current = version.get();
+        Entry e = responses.get(key);
+        if (e != null && e.version == current) {
+            hits.increment();
+            exchange.sendResponse(toResponse(e, request));
+            return;
+        }
+        misses.increment();
+        Response response = fetch(exchange);
+        if (response == null) {
+            trl.handleRequest(exchange);
+            return;
+        }
+        Entry fetched = new Entry(current, response);
+        if (response.getCode() == CoAP.ResponseCode.CONTENT) {
+            if (responses.size() >= MAX_ENTRIES) {
+                responses.clear();
+            }
+            responses.put(key, fetched);
+        }
+        exchange.sendResponse(toResponse(fetched, request));
+    }
+
+    /**
+     * Lets the TRL resource handle a request on a detached exchange, so that
+     * its response is captured before being protected with OSCORE and sent.
+     *
+     * @return the response, or null if the TRL resource did not respond synchronously
+     */
+    private Response fetch(Exchange exchange) {
+        Response[] captured = new Response[1];
+        Endpoint capture = (Endpoint) Proxy.newProxyInstance(Endpoint.class.getClassLoader(),
+                new Class<?>[]{Endpoint.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("sendResponse")) {
+                        captured[0] = (Response) args[1];
+                    }
+                    return defaultValue(method.getReturnType());
+                });
+        Exchange detached = new Exchange(exchange.getRequest(), exchange.getPeersIdentity(),
+                Exchange.Origin.REMOTE, Runnable::run);
+        detached.setEndpoint(capture);
+        trl.handleRequest(detached);
+        return captured[0];
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        return type.isPrimitive() && type != void.class ? 0 : null;
+    }
+
+    private Response toResponse(Entry e, Request request) {
+        if (e.etag != null && request.getOptions().containsETag(e.etag)) {
+            valid.increment();
+            Response response = new Response(CoAP.ResponseCode.VALID);
+            response.getOptions().addETag(e.etag);
+            return response;
+        }
+        Response response = new Response(e.code);
+        response.setOptions(new OptionSet(e.options));
+        response.setPayload(e.payload);
+        return response;
+    }
+
+    private static String getPeer(Request request) {
+        if (request.getOptions().hasOscore()) {
+            try {
+                String senderId = CoapReq.getInstance(request).getSenderId();
+                if (senderId != null) {
+                    return senderId;
+                }
+            } catch (AceException e) {
+                // identified by address
+            }
+        }
+        return String.valueOf(request.getSourceContext().getPeerAddress());
+    }
+
+    /**
+     * Drops the cached responses, and notifies the observers of the TRL
+     */
+    public void invalidate() {
+        version.incrementAndGet();
+        responses.clear();
+        changed();
+    }
+
+    @Override
+    public void tokenAdded(String cti, String clientId, Map<Short, CBORObject> claims) {
+        // issued tokens are not in the TRL
+    }
+
+    @Override
+    public boolean usesClaims() {
+        return false;
+    }
+
+    @Override
+    public void tokenRemoved(String cti) {
+        invalidate();
+    }
+
+    @Override
+    public void tokensRemoved(Collection<String> ctis) {
+        if (!ctis.isEmpty()) {
+            invalidate();
+        }
+    }
+
+    @Override
+    public void tokensExpired(long now) {
+        invalidate();
+    }
+
+    /**
+     * @return the version of the cache, increased by every invalidation
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of 2.03 (Valid) responses
+     */
+    public long getValid() {
+        return valid.sum();
+    }
+
+    private static byte[] computeETag(byte[] payload) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(payload);
+            return Arrays.copyOf(digest, ETAG_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TRL cache: " + hits.sum() + " hits, " + misses.sum() + " misses, "
+                + valid.sum() + " valid responses, " + responses.size()
+                + " responses, version " + version.get();
+    }
+}
@@ -66,6 +66,12 @@ public class TestASInputs {
         assertNotEquals(0, exitCode);
     }
 
+    @Test
+    public void testFailTrlDiffsInput() {
+        int exitCode = new CommandLine(new AceAS()).execute("-d", "mem:", "--trlDiffs", "0");
+        assertNotEquals(0, exitCode);
+    }
+
     @Test
     public void testSuccessSqlDbInputWithExplicitCredentials() throws Exception {
         int exitCode = new CommandLine(new AceAS()).execute("-d", dbUri);
@@ -73,6 +79,13 @@ public class TestASInputs {
         AceAS.stop();
     }
 
+    @Test
+    public void testSuccessInMemoryDbInput() throws Exception {
+        int exitCode = new CommandLine(new AceAS()).execute("-d", "mem:");
+        assertEquals(0, exitCode);
+        AceAS.stop();
+    }
+
     @Test
     public void testSuccessSqlDbInputLoadCredentialsFromFile() throws Exception {
 
@@ -0,0 +1,40 @@
+package eu.sifishome;
+
+import eu.sifishome.attributes.AttributeDhtSubscriber;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestAttributeDhtSubscriber {
+
+    @Test
+    public void testParse() {
+        Map<String, String> expected = new HashMap<>();
+        expected.put("thermometer-reachable", "n");
+        expected.put("screen-reachable", "y");
+        assertEquals(expected, AttributeDhtSubscriber.parse(message("attributes",
+                "{\"thermometer-reachable\": \"n\", \"screen-reachable\": \"y\"}"), "attributes"));
+    }
+
+    @Test
+    public void testParseIgnoresOtherTopics() {
+        assertNull(AttributeDhtSubscriber.parse(message("other", "{\"screen-reachable\": \"y\"}"), "attributes"));
+    }
+
+    @Test
+    public void testParseMalformedMessages() {
+        assertNull(AttributeDhtSubscriber.parse("not json", "attributes"));
+        assertNull(AttributeDhtSubscriber.parse("{\"Volatile\": {}}", "attributes"));
+        assertNull(AttributeDhtSubscriber.parse(message("attributes", "[\"screen-reachable\"]"), "attributes"));
+        assertNull(AttributeDhtSubscriber.parse(message("attributes", "{\"screen-reachable\": {\"a\": 1}}"),
+                "attributes"));
+    }
+
+    private static String message(String topic, String attributes) {
+        return "{\"Volatile\": {\"value\": {\"topic\": \"" + topic + "\", \"message\": " + attributes + "}}}";
+    }
+}
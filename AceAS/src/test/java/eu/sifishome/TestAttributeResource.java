@@ -0,0 +1,72 @@
+package eu.sifishome;
+
+import com.upokecenter.cbor.CBORObject;
+import eu.sifishome.attributes.AttributeResource;
+import eu.sifishome.attributes.AttributeStore;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Response;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class TestAttributeResource {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AttributeStore store;
+    private AttributeResource resource;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new AttributeStore(folder.getRoot());
+        store.init("thermometer-reachable", "y");
+        resource = new AttributeResource("attributes", store, "writer"::equals);
+    }
+
+    @Test
+    public void testUpdate() {
+        Response response = resource.update("writer", update("thermometer-reachable", "n"));
+        assertEquals(CoAP.ResponseCode.CHANGED, response.getCode());
+        assertEquals(store.getVersion(), CBORObject.DecodeFromBytes(response.getPayload()).AsInt64Value());
+        assertEquals("n", store.get("thermometer-reachable"));
+    }
+
+    @Test
+    public void testUnauthorizedSender() {
+        assertEquals(CoAP.ResponseCode.FORBIDDEN,
+                resource.update("other", update("thermometer-reachable", "n")).getCode());
+        assertEquals(CoAP.ResponseCode.FORBIDDEN,
+                resource.update(null, update("thermometer-reachable", "n")).getCode());
+        assertEquals("y", store.get("thermometer-reachable"));
+    }
+
+    @Test
+    public void testNonMapPayload() {
+        assertEquals(CoAP.ResponseCode.BAD_REQUEST, resource.update("writer",
+                CBORObject.NewArray().Add("thermometer-reachable").EncodeToBytes()).getCode());
+        assertEquals(CoAP.ResponseCode.BAD_REQUEST, resource.update("writer",
+                CBORObject.NewMap().Add("thermometer-reachable", 1).EncodeToBytes()).getCode());
+        assertEquals(CoAP.ResponseCode.BAD_REQUEST, resource.update("writer", new byte[]{(byte) 0xff}).getCode());
+    }
+
+    @Test
+    public void testBadAttributeName() {
+        for (String name : new String[]{"../policies/p", "a/b", "a\\b", ".hidden", "a\nb", "unknown"}) {
+            assertEquals(name, CoAP.ResponseCode.BAD_REQUEST,
+                    resource.update("writer", update(name, "n")).getCode());
+            assertNull(store.get(name));
+        }
+        assertFalse(store.getFile("unknown").exists());
+        assertEquals(1, store.getAll().size());
+    }
+
+    private static byte[] update(String attribute, String value) {
+        return CBORObject.NewMap().Add(attribute, value).EncodeToBytes();
+    }
+}
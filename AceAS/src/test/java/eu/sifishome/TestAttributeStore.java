@@ -0,0 +1,146 @@
+package eu.sifishome;
+
+import eu.sifishome.attributes.AttributeStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.sics.ace.AceException;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class TestAttributeStore {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBatchUpdateNotifiesChangesOnce() throws Exception {
+        AttributeStore store = new AttributeStore(folder.getRoot());
+        store.init("thermometer-reachable", "y");
+        store.init("screen-reachable", "y");
+        store.init("screen-reachable", "n");
+
+        List<Map<String, String>> notified = new ArrayList<>();
+        store.addListener((changed, version) -> notified.add(changed));
+
+        Map<String, String> updates = new HashMap<>();
+        updates.put("thermometer-reachable", "n");
+        updates.put("screen-reachable", "y");
+        store.update(updates);
+
+        assertEquals(1, notified.size());
+        assertEquals(1, notified.get(0).size());
+        assertEquals("n", notified.get(0).get("thermometer-reachable"));
+        assertEquals(3, store.getVersion());
+        assertEquals("n", new String(Files.readAllBytes(
+                store.getFile("thermometer-reachable").toPath()), StandardCharsets.UTF_8));
+
+        // values are loaded from the files when the store is created
+        assertEquals("n", new AttributeStore(folder.getRoot()).get("thermometer-reachable"));
+    }
+
+    @Test
+    public void testFailedBatchRestoresFiles() throws Exception {
+        AttributeStore store = new AttributeStore(folder.getRoot());
+        store.init("thermometer-reachable", "y");
+        store.init("screen-reachable", "y");
+        // the file of the second attribute cannot be replaced
+        File screen = store.getFile("screen-reachable");
+        assertTrue(screen.delete());
+        assertTrue(new File(screen, "busy").mkdirs());
+
+        Map<String, String> updates = new LinkedHashMap<>();
+        updates.put("thermometer-reachable", "n");
+        updates.put("screen-reachable", "n");
+        assertThrows(AceException.class, () -> store.update(updates));
+
+        assertEquals("y", store.get("thermometer-reachable"));
+        assertEquals("y", new String(Files.readAllBytes(
+                store.getFile("thermometer-reachable").toPath()), StandardCharsets.UTF_8));
+        assertEquals(0, folder.getRoot().list((d, name) -> name.endsWith(".tmp")).length);
+    }
+
+    @Test
+    public void testRejectsInvalidAndUnknownAttributes() throws Exception {
+        AttributeStore store = new AttributeStore(folder.getRoot());
+        store.init("thermometer-reachable", "y");
+
+        assertThrows(AttributeStore.InvalidAttributeException.class,
+                () -> store.set("../thermometer-reachable", "n"));
+        assertThrows(AttributeStore.InvalidAttributeException.class,
+                () -> store.init("dir/thermometer-reachable", "n"));
+        Map<String, String> updates = new HashMap<>();
+        updates.put("thermometer-reachable", "n");
+        updates.put("screen-reachable", "n");
+        assertThrows(AttributeStore.InvalidAttributeException.class, () -> store.update(updates));
+
+        // nothing is applied
+        assertEquals("y", store.get("thermometer-reachable"));
+        assertEquals(1, store.getVersion());
+    }
+
+    @Test
+    public void testPartialExternalWritesAreNotPushed() throws Exception {
+        AttributeStore store = new AttributeStore(folder.getRoot());
+        store.init("speaker-reachable", "y");
+
+        List<String> notified = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        store.addListener((changed, version) -> {
+            notified.add(changed.get("speaker-reachable"));
+            if ("no".equals(changed.get("speaker-reachable"))) {
+                latch.countDown();
+            }
+        });
+        store.startWatching();
+        File file = store.getFile("speaker-reachable");
+
+        // a truncated file, never completed, is ignored
+        Files.write(file.toPath(), new byte[0]);
+        Thread.sleep(3 * AttributeStore.SETTLE_MILLIS);
+        assertEquals("y", store.get("speaker-reachable"));
+
+        // a value written in several steps is pushed once complete
+        Files.write(file.toPath(), "n".getBytes(StandardCharsets.UTF_8));
+        Thread.sleep(AttributeStore.SETTLE_MILLIS / 5);
+        Files.write(file.toPath(), "no".getBytes(StandardCharsets.UTF_8));
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("no"), notified);
+        store.close();
+    }
+
+    @Test
+    public void testExternalChangesArePushed() throws Exception {
+        AttributeStore store = new AttributeStore(folder.getRoot());
+        store.init("speaker-reachable", "y");
+
+        CountDownLatch latch = new CountDownLatch(1);
+        store.addListener((changed, version) -> {
+            if ("n".equals(changed.get("speaker-reachable"))) {
+                latch.countDown();
+            }
+        });
+        store.startWatching();
+        Files.write(store.getFile("speaker-reachable").toPath(), "n".getBytes(StandardCharsets.UTF_8));
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals("n", store.get("speaker-reachable"));
+        store.close();
+    }
+}
@@ -0,0 +1,142 @@
+package eu.sifishome;
+
+import com.upokecenter.cbor.CBORObject;
+import eu.sifishome.introspection.BatchIntrospectResource;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.elements.AddressEndpointContext;
+import org.junit.Test;
+import se.sics.ace.Constants;
+import se.sics.ace.as.DBConnector;
+import se.sics.ace.as.PDP;
+
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestBatchIntrospectResource {
+
+    private final Map<String, Map<Short, CBORObject>> tokens = new HashMap<>();
+
+    private final DBConnector db = (DBConnector) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[]{DBConnector.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getClaims":
+                        return tokens.getOrDefault((String) args[0], Collections.emptyMap());
+                    case "getAudiences":
+                        return "rs1".equals(args[0]) ? Collections.singleton("aud1") : null;
+                    default:
+                        return null;
+                }
+            });
+
+    private final PDP pdp = (PDP) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[]{PDP.class},
+            (proxy, method, args) -> "canAccessIntrospect".equals(method.getName())
+                    && ("rs1".equals(args[0]) || "rs2".equals(args[0])));
+
+    // the OSCORE identities of the peers, as built by the AS
+    private final Map<String, String> peerNames = new HashMap<>();
+
+    {
+        peerNames.put("AQ==:Ag==", "rs1");
+        peerNames.put("Aw==:Ag==", "c1");
+    }
+
+    @Test
+    public void testStatusOfEachToken() throws Exception {
+        addToken(1, "aud1", 2000);
+        addToken(2, "aud1", 500);
+        addToken(3, "aud2", 2000);
+        BatchIntrospectResource resource =
+                new BatchIntrospectResource(BatchIntrospection.RESOURCE, db, pdp, () -> 1000L, peerNames::get);
+
+        CBORObject ctis = CBORObject.NewArray();
+        for (int i = 1; i <= 4; i++) {
+            ctis.Add(new byte[]{(byte) i});
+        }
+        CBORObject statuses = resource.introspect("rs1", ctis);
+        assertEquals(4, statuses.size());
+
+        CBORObject active = statuses.get(CBORObject.FromObject(new byte[]{1}));
+        assertEquals(CBORObject.True, active.get(CBORObject.FromObject(Constants.ACTIVE)));
+        assertEquals(2000L, active.get(CBORObject.FromObject(Constants.EXP)).AsInt64Value());
+        // expired, addressed to another RS, and unknown
+        for (int i = 2; i <= 4; i++) {
+            CBORObject inactive = statuses.get(CBORObject.FromObject(new byte[]{(byte) i}));
+            assertEquals(1, inactive.size());
+            assertEquals(CBORObject.False, inactive.get(CBORObject.FromObject(Constants.ACTIVE)));
+        }
+
+        // an RS with no audience has no active token
+        statuses = resource.introspect("rs2", ctis);
+        assertEquals(CBORObject.False, statuses.get(CBORObject.FromObject(new byte[]{1}))
+                .get(CBORObject.FromObject(Constants.ACTIVE)));
+    }
+
+    @Test
+    public void testSenderResolvedFromOscoreIdentity() {
+        addToken(1, "aud1", 2000);
+        CBORObject ctis = CBORObject.NewArray().Add(new byte[]{1});
+
+        Response response = post("AQ==:Ag==", ctis);
+        assertEquals(CoAP.ResponseCode.CONTENT, response.getCode());
+        CBORObject status = CBORObject.DecodeFromBytes(response.getPayload())
+                .get(CBORObject.FromObject(new byte[]{1}));
+        assertEquals(CBORObject.True, status.get(CBORObject.FromObject(Constants.ACTIVE)));
+
+        // a registered peer that cannot introspect, an unknown identity,
+        // the name of an RS instead of its identity, and no identity
+        for (String senderId : new String[]{"Aw==:Ag==", "BA==:Ag==", "rs1", null}) {
+            assertEquals(String.valueOf(senderId), CoAP.ResponseCode.FORBIDDEN,
+                    post(senderId, ctis).getCode());
+        }
+    }
+
+    private Response post(String senderId, CBORObject ctis) {
+        BatchIntrospectResource resource = new BatchIntrospectResource(
+                BatchIntrospection.RESOURCE, db, pdp, () -> 1000L, peerNames::get) {
+            @Override
+            protected String getSenderId(Request request) {
+                return senderId;
+            }
+        };
+        Request request = Request.newPost();
+        request.setPayload(ctis.EncodeToBytes());
+        request.setOptions(new OptionSet().setOscore(new byte[0]));
+        request.setSourceContext(new AddressEndpointContext(new InetSocketAddress(5683)));
+
+        AtomicReference<Response> response = new AtomicReference<>();
+        Exchange exchange = new Exchange(request, request.getSourceContext().getPeerAddress(),
+                Exchange.Origin.REMOTE, Runnable::run);
+        exchange.setEndpoint((Endpoint) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{Endpoint.class},
+                (proxy, method, args) -> {
+                    if ("sendResponse".equals(method.getName())) {
+                        response.set((Response) args[1]);
+                    }
+                    return null;
+                }));
+        resource.handlePOST(new CoapExchange(exchange, resource));
+        return response.get();
+    }
+
+    private void addToken(int cti, String aud, long exp) {
+        Map<Short, CBORObject> claims = new HashMap<>();
+        claims.put(Constants.AUD, CBORObject.FromObject(aud));
+        claims.put(Constants.EXP, CBORObject.FromObject(exp));
+        tokens.put(Base64.getEncoder().encodeToString(new byte[]{(byte) cti}), claims);
+    }
+}
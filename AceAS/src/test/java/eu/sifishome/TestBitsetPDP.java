@@ -0,0 +1,146 @@
+package eu.sifishome;
+
+import eu.sifishome.attributes.AttributeStore;
+import eu.sifishome.pdp.BitsetPDP;
+import eu.sifishome.pdp.CompiledPolicy;
+import eu.sifishome.pdp.SessionIndex;
+import eu.sifishome.pdp.SessionReevaluator;
+import eu.sifishome.policies.PolicyStore;
+import eu.sifishome.policies.PolicyTemplate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.sics.ace.AceException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class TestBitsetPDP {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AttributeStore store;
+    private PolicyStore policyStore;
+    private BitsetPDP pdp;
+
+    @Before
+    public void setUp() throws Exception {
+        DBHelper.restoreDefaultClassFields();
+        DBHelper.setUpDB("mem:");
+        store = new AttributeStore(folder.getRoot());
+        store.init("thermometer-reachable", "y");
+        store.init("welcome-led-panel", "Hi!");
+        store.init("attribute-temp2", "y");
+        policyStore = new PolicyStore(folder.newFolder("policies"));
+        pdp = new BitsetPDP(DBHelper.getCoapDBConnector(), store, policyStore);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pdp.close();
+        policyStore.close();
+        DBHelper.tearDownDB();
+    }
+
+    @Test
+    public void testCompileTemplate() throws Exception {
+        CompiledPolicy policy = CompiledPolicy.compile(render("policy_template_temp", 2,
+                "ClientA", "rs1").replace(PolicyTemplate.RESOURCE, "temp"));
+        assertTrue(policy.matches("ClientA", "rs1", "temp", "read"));
+        assertEquals(Collections.emptyMap(), policy.getPreConditions());
+        Map<String, String> ongoing = new HashMap<>();
+        ongoing.put("thermometer-reachable", "y");
+        ongoing.put("attribute-temp2", "y");
+        assertEquals(ongoing, policy.getOngoingConditions());
+    }
+
+    @Test
+    public void testUnsupportedPolicy() {
+        assertThrows(AceException.class, () -> CompiledPolicy.compile(
+                PolicyTemplate.get("policy_templateOR").getContent()));
+    }
+
+    @Test
+    public void testCanAccess() throws Exception {
+        pdp.addAccess("ClientA", "rs1", "r_temp", render("policy_template_temp", 2, "ClientA", "rs1"));
+        pdp.addAccess("ClientA", "rs1", "r_helloWorld");
+
+        assertEquals("r_temp r_helloWorld", pdp.canAccess("ClientA", "rs1", "r_temp r_helloWorld"));
+        assertEquals("r_temp", pdp.canAccess("ClientA", "rs1", "r_temp w_temp rw_temp"));
+        assertNull(pdp.canAccess("ClientB", "rs1", "r_temp"));
+        assertNull(pdp.canAccess("ClientA", "rs2", "r_temp"));
+
+        long hits = pdp.getDecisionCache().getHits();
+        assertEquals("r_temp r_helloWorld", pdp.canAccess("ClientA", "rs1", "r_temp r_helloWorld"));
+        assertEquals(hits + 1, pdp.getDecisionCache().getHits());
+
+        store.set("attribute-temp2", "n");
+        assertEquals("r_helloWorld", pdp.canAccess("ClientA", "rs1", "r_temp r_helloWorld"));
+        store.set("attribute-temp2", "y");
+        assertEquals("r_temp", pdp.canAccess("ClientA", "rs1", "r_temp"));
+        assertEquals(hits + 1, pdp.getDecisionCache().getHits());
+
+        pdp.removeAccess("ClientA");
+        assertNull(pdp.canAccess("ClientA", "rs1", "r_temp r_helloWorld"));
+    }
+
+    @Test
+    public void testReloadPolicies() throws Exception {
+        pdp.addAccess("ClientA", "rs1", "r_temp", render("policy_template_temp", 2, "ClientA", "rs1"));
+        pdp.addAccess("ClientB", "rs1", "r_temp", render("policy_template_temp", 2, "ClientB", "rs1"));
+        pdp.close();
+        policyStore.close();
+
+        policyStore = new PolicyStore(new File(folder.getRoot(), "policies"));
+        pdp = new BitsetPDP(DBHelper.getCoapDBConnector(), store, policyStore);
+        assertEquals(2, pdp.size());
+        assertTrue(pdp.hasAccess("ClientA"));
+        assertEquals("r_temp", pdp.canAccess("ClientA", "rs1", "r_temp w_temp"));
+
+        pdp.removeAccess("ClientB");
+        assertNull(pdp.canAccess("ClientB", "rs1", "r_temp"));
+        assertEquals(1, pdp.size());
+    }
+
+    @Test
+    public void testRevokeOnAttributeChange() throws Exception {
+        String policy = render("policy_template_temp", 1, "ClientA", "rs1");
+        pdp.addAccess("ClientA", "rs1", "r_temp", policy);
+
+        SessionIndex index = new SessionIndex();
+        index.addGrant("ClientA", "rs1", "r_temp", PolicyTemplate.getEnvironmentAttributes(policy));
+        index.addSession("cti1", "ClientA", Collections.singleton("rs1"), "r_temp", Long.MAX_VALUE);
+
+        List<String> revoked = new ArrayList<>();
+        SessionReevaluator reevaluator = new SessionReevaluator(index, pdp, revoked::add);
+        store.addListener(reevaluator);
+
+        store.set("welcome-led-panel", "Bye!");
+        store.set("thermometer-reachable", "n");
+        reevaluator.close();
+
+        assertEquals(Collections.singletonList("cti1"), revoked);
+        assertEquals(1, reevaluator.getReevaluated());
+        assertEquals(0, index.size());
+    }
+
+    private static String render(String template, int numAttributes, String subject, String rs)
+            throws AceException {
+        Map<String, String> values = new HashMap<>();
+        values.put(PolicyTemplate.SUBJECT, subject);
+        values.put(PolicyTemplate.RESOURCE_SERVER, rs);
+        return PolicyTemplate.get(template, "attribute-temp", numAttributes).render(values);
+    }
+}
@@ -0,0 +1,122 @@
+package eu.sifishome;
+
+import eu.sifishome.trl.CachedTrlResource;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestCachedTrlResource {
+
+    private final AtomicInteger handled = new AtomicInteger();
+    private CoapServer server;
+    private CachedTrlResource cache;
+    private String uri;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new CoapServer();
+        CoapEndpoint endpoint = CoapEndpoint.builder()
+                .setInetSocketAddress(new InetSocketAddress("127.0.0.1", 0)).build();
+        server.addEndpoint(endpoint);
+        // stands for the TRL resource of the AS, whose content changes at each request
+        server.add(new CoapResource("trl") {
+            @Override
+            public void handleGET(CoapExchange exchange) {
+                String query = exchange.getRequestOptions().getUriQueryString();
+                exchange.respond(CoAP.ResponseCode.CONTENT, "trl " + handled.incrementAndGet()
+                        + (query.isEmpty() ? "" : " " + query));
+            }
+        });
+        cache = CachedTrlResource.install(r -> server.add(r), "trl");
+        server.start();
+        uri = "coap://127.0.0.1:" + endpoint.getAddress().getPort() + "/trl";
+    }
+
+    @After
+    public void tearDown() {
+        server.destroy();
+    }
+
+    @Test
+    public void testResponsesAreCachedUntilInvalidated() throws Exception {
+        CoapClient client = new CoapClient(uri);
+        assertEquals("trl 1", client.get().getResponseText());
+        assertEquals("trl 1", client.get().getResponseText());
+        assertEquals(1, handled.get());
+
+        // each query has its own response
+        CoapClient diff = new CoapClient(uri + "?diff=3");
+        assertEquals("trl 2 diff=3", diff.get().getResponseText());
+        assertEquals("trl 2 diff=3", diff.get().getResponseText());
+
+        cache.tokenRemoved("cti1");
+        CoapResponse response = client.get();
+        assertEquals(CoAP.ResponseCode.CONTENT, response.getCode());
+        assertEquals("trl 3", response.getResponseText());
+        assertEquals(2, cache.getHits());
+        assertEquals(3, cache.getMisses());
+
+        client.shutdown();
+        diff.shutdown();
+    }
+
+    @Test
+    public void testTokensRemovedTogetherInvalidateOnce() throws Exception {
+        CoapClient client = new CoapClient(uri);
+        assertEquals("trl 1", client.get().getResponseText());
+
+        cache.tokensRemoved(Arrays.asList("cti1", "cti2", "cti3"));
+        assertEquals(1, cache.getVersion());
+        cache.tokensRemoved(Collections.emptyList());
+        assertEquals(1, cache.getVersion());
+        assertEquals("trl 2", client.get().getResponseText());
+
+        client.shutdown();
+    }
+
+    @Test
+    public void testConditionalRequests() throws Exception {
+        CoapClient client = new CoapClient(uri);
+        CoapResponse response = client.get();
+        byte[] etag = response.getOptions().getETags().get(0);
+
+        response = client.advanced(conditionalGet(etag));
+        assertEquals(CoAP.ResponseCode.VALID, response.getCode());
+        assertEquals(0, response.getPayload().length);
+        assertArrayEquals(etag, response.getOptions().getETags().get(0));
+
+        // the TRL content changes, and so does the ETag
+        cache.tokenRemoved("cti1");
+        response = client.advanced(conditionalGet(etag));
+        assertEquals(CoAP.ResponseCode.CONTENT, response.getCode());
+        assertEquals("trl 2", response.getResponseText());
+        assertFalse(Arrays.equals(etag, response.getOptions().getETags().get(0)));
+        assertEquals(1, cache.getValid());
+
+        client.shutdown();
+    }
+
+    private Request conditionalGet(byte[] etag) {
+        Request request = Request.newGet();
+        request.setURI(uri);
+        request.getOptions().addETag(etag);
+        return request;
+    }
+}
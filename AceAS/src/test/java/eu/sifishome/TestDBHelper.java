@@ -1,20 +1,28 @@
 package eu.sifishome;
 
 
+import eu.sifishome.db.H2DBAdapter;
+import eu.sifishome.db.PeerRegistry;
 import org.junit.Before;
 import org.junit.Test;
 import se.sics.ace.AceException;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
 public class TestDBHelper {
 
@@ -77,4 +85,69 @@ public class TestDBHelper {
         }
 
     }
+
+    /**
+     * Test the DBHelper with the in-memory database.
+     */
+    @Test
+    public void testSucceedInMemoryURI() throws AceException, IOException {
+        DBHelper.setUpDB("mem:");
+        DBHelper.tearDownDB();
+    }
+
+    @Test
+    public void testSucceedInMemoryURIWithSnapshot() throws AceException, IOException {
+        File snapshot = new File("target/testdb-snapshot.sql");
+        assert (snapshot.delete() || !snapshot.exists());
+
+        DBHelper.setUpDB("mem:" + snapshot.getPath());
+        DBHelper.tearDownDB();
+        assertTrue(snapshot.exists());
+    }
+
+    @Test
+    public void testResumeInMemoryDBFromSnapshot() throws AceException, IOException {
+        File snapshot = new File("target/testdb-resume.sql");
+        assert (snapshot.delete() || !snapshot.exists());
+
+        // nothing to resume: a new DB is created
+        assertFalse(DBHelper.setUpDB("mem:" + snapshot.getPath(), true));
+        DBHelper.getPeerRegistry().put("ClientA", PeerRegistry.CLIENT, "RA==:Ig==", "fp");
+        DBHelper.closeDB();
+
+        assertTrue(DBHelper.setUpDB("mem:" + snapshot.getPath(), true));
+        Map<String, PeerRegistry.Entry> peers = DBHelper.getPeerRegistry().load();
+        assertEquals("RA==:Ig==", peers.get("ClientA").getIdentity());
+        DBHelper.tearDownDB();
+    }
+
+    @Test
+    public void testConnectionPoolMetrics() throws AceException, IOException, SQLException {
+        DBHelper.setPoolSettings(2, 1000L, 10);
+        DBHelper.setUpDB("mem:");
+
+        try (Connection c1 = DBHelper.getConnection();
+             Connection c2 = DBHelper.getConnection()) {
+            assertEquals(2, DBHelper.getConnectionPool().getActiveConnections());
+        }
+        assertEquals(0, DBHelper.getConnectionPool().getActiveConnections());
+        assertEquals(2, DBHelper.getConnectionPool().getConnectionRequests());
+        DBHelper.tearDownDB();
+    }
+
+    @Test
+    public void testTranslateMySQLStatements() {
+        assertEquals("CREATE SCHEMA IF NOT EXISTS testdb",
+                H2DBAdapter.translate("CREATE DATABASE IF NOT EXISTS testdb CHARACTER SET utf8 COLLATE utf8_bin;"));
+        assertEquals("DROP SCHEMA IF EXISTS testdb CASCADE",
+                H2DBAdapter.translate("DROP DATABASE IF EXISTS testdb;"));
+        assertEquals("CREATE USER IF NOT EXISTS testuser PASSWORD 'testpwd' ADMIN",
+                H2DBAdapter.translate("CREATE USER 'testuser'@'localhost' IDENTIFIED BY 'testpwd';"));
+        assertEquals("DROP USER IF EXISTS testuser",
+                H2DBAdapter.translate("DROP USER IF EXISTS 'testuser'@'localhost';"));
+        assertEquals("",
+                H2DBAdapter.translate("GRANT DELETE, INSERT, SELECT, UPDATE ON testdb.* TO 'testuser'@'localhost';"));
+        assertEquals("SELECT claimValue FROM testdb.Claims WHERE cti = ?",
+                H2DBAdapter.translate("SELECT claimValue FROM testdb.Claims WHERE cti = ?"));
+    }
 }
@@ -0,0 +1,56 @@
+package eu.sifishome;
+
+import eu.sifishome.pdp.DecisionCache;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestDecisionCache {
+
+    @Test
+    public void testReuseWithSameVersion() throws Exception {
+        DecisionCache cache = new DecisionCache();
+        AtomicInteger evaluations = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("r_temp", cache.get("ClientA", "rs1", "r_temp", 1, () -> {
+                evaluations.incrementAndGet();
+                return "r_temp";
+            }));
+        }
+        assertEquals(1, evaluations.get());
+        assertEquals(2, cache.getHits());
+
+        // a new attribute version replaces the decision
+        assertNull(cache.get("ClientA", "rs1", "r_temp", 2, () -> null));
+        assertNull(cache.get("ClientA", "rs1", "r_temp", 2, () -> "r_temp"));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testInvalidateBySubject() throws Exception {
+        DecisionCache cache = new DecisionCache();
+        cache.get("ClientA", "rs1", "r_temp", 0, () -> "r_temp");
+        cache.get("ClientB", "rs1", "r_temp", 0, () -> "r_temp");
+
+        cache.invalidate("ClientA");
+        assertEquals("r_temp r_helloWorld",
+                cache.get("ClientA", "rs1", "r_temp", 0, () -> "r_temp r_helloWorld"));
+        assertEquals("r_temp", cache.get("ClientB", "rs1", "r_temp", 0, () -> "other"));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        DecisionCache cache = new DecisionCache(2);
+        cache.get("ClientA", "rs1", "r_temp", 0, () -> true);
+        cache.get("ClientB", "rs1", "r_temp", 0, () -> true);
+        cache.get("ClientC", "rs1", "r_temp", 0, () -> true);
+        AtomicInteger evaluations = new AtomicInteger();
+        cache.get("ClientA", "rs1", "r_temp", 0, () -> evaluations.incrementAndGet() > 0);
+        assertEquals(1, evaluations.get());
+    }
+}
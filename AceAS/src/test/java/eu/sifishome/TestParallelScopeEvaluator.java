@@ -0,0 +1,44 @@
+package eu.sifishome;
+
+import eu.sifishome.pdp.ParallelScopeEvaluator;
+import org.junit.Test;
+import se.sics.ace.AceException;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class TestParallelScopeEvaluator {
+
+    @Test
+    public void testMergeInScopeOrder() throws Exception {
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        try (ParallelScopeEvaluator evaluator = new ParallelScopeEvaluator(4)) {
+            String granted = evaluator.evaluate("r_temp r_helloWorld r_volume w_temp", s -> {
+                threads.add(Thread.currentThread().getName());
+                LockSupport.parkNanos(20_000_000L);
+                return s.startsWith("r_") ? s : null;
+            });
+            assertEquals("r_temp r_helloWorld r_volume", granted);
+            assertNull(evaluator.evaluate("w_temp", s -> null));
+        }
+        assertTrue(threads.size() > 1);
+    }
+
+    @Test
+    public void testFailure() {
+        try (ParallelScopeEvaluator evaluator = new ParallelScopeEvaluator(2)) {
+            assertThrows(AceException.class, () -> evaluator.evaluate("r_temp r_helloWorld", s -> {
+                if (s.equals("r_helloWorld")) {
+                    throw new AceException("failed");
+                }
+                return s;
+            }));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package eu.sifishome;
+
+import eu.sifishome.db.PeerCache;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestPeerCache {
+
+    @Test
+    public void testReadThroughAndInvalidate() throws Exception {
+        PeerCache cache = new PeerCache();
+        AtomicInteger loads = new AtomicInteger();
+
+        assertEquals("coap_oscore", cache.get("profile", () -> {
+            loads.incrementAndGet();
+            return "coap_oscore";
+        }));
+        assertEquals("coap_oscore", cache.get("profile", () -> {
+            loads.incrementAndGet();
+            return "other";
+        }));
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.invalidate();
+        assertEquals("other", cache.get("profile", () -> "other"));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testCachesNullValues() throws Exception {
+        PeerCache cache = new PeerCache();
+        AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            assertNull(cache.get("cRpk", () -> {
+                loads.incrementAndGet();
+                return null;
+            }));
+        }
+        assertEquals(1, loads.get());
+        assertEquals(2.0 / 3, cache.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        PeerCache cache = new PeerCache(2);
+        cache.get("rs1", () -> "a");
+        cache.get("rs2", () -> "b");
+        cache.get("rs1", () -> "other");
+        cache.get("rs3", () -> "c");
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals("a", cache.get("rs1", () -> "other"));
+        assertEquals("other", cache.get("rs2", () -> "other"));
+    }
+
+    @Test
+    public void testKeyIgnoresSetOrder() {
+        assertEquals(
+                PeerCache.key("rss", new HashSet<>(Arrays.asList("rs1", "rs2"))),
+                PeerCache.key("rss", new LinkedHashSet<>(Arrays.asList("rs2", "rs1"))));
+    }
+}
@@ -0,0 +1,107 @@
+package eu.sifishome;
+
+import com.upokecenter.cbor.CBORObject;
+import eu.sifishome.peers.Client;
+import eu.sifishome.peers.PeerManifest;
+import eu.sifishome.peers.ResourceServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.sics.ace.AceException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestPeerManifest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCsvManifestInBatches() throws Exception {
+        File manifest = folder.newFile("peers.csv");
+        try (PrintWriter out = new PrintWriter(manifest)) {
+            out.println("# type,name,scope,aud,senderId,masterSecret,tokenKey");
+            out.println("R,rs1,r_temp r_helloWorld,rs1,0x11,RS1-AS-MS-------,RS1-AS-Default-PSK-for-tokens---");
+            for (int i = 0; i < 2500; i++) {
+                out.println("C,Client" + i + ",r_temp|r_helloWorld,rs1|rs1,"
+                        + String.format("0x%04x", i) + ",ClientA-AS-MS---");
+            }
+        }
+
+        List<Client> clients = new ArrayList<>();
+        List<ResourceServer> rss = new ArrayList<>();
+        List<Integer> batches = new ArrayList<>();
+        PeerManifest.Stats stats = PeerManifest.load(manifest, 1000, (c, r) -> {
+            batches.add(c.size() + r.size());
+            clients.addAll(c);
+            rss.addAll(r);
+        });
+
+        assertEquals(Arrays.asList(1000, 1000, 501), batches);
+        assertEquals(2500, stats.getClients());
+        assertEquals(1, stats.getResourceServers());
+        assertEquals("Client0", clients.get(0).getName());
+        assertEquals(Arrays.asList("rs1", "rs1"), clients.get(0).getAud());
+        assertEquals("", rss.get(0).getAud());
+    }
+
+    @Test
+    public void testCborManifest() throws Exception {
+        File manifest = folder.newFile("peers.cbor");
+        try (FileOutputStream out = new FileOutputStream(manifest)) {
+            CBORObject client = CBORObject.NewMap();
+            client.Add("type", "C");
+            client.Add("name", "ClientA");
+            client.Add("scope", CBORObject.NewArray().Add("r_temp").Add("r_helloWorld"));
+            client.Add("aud", CBORObject.NewArray().Add("rs1").Add("rs2"));
+            client.Add("senderId", "0x22");
+            client.Add("masterSecret", "ClientA-AS-MS---");
+            client.WriteTo(out);
+            client.set("name", CBORObject.FromObject("ClientB"));
+            client.WriteTo(out);
+        }
+
+        List<Client> clients = new ArrayList<>();
+        PeerManifest.load(manifest, 10, (c, r) -> clients.addAll(c));
+        assertEquals(2, clients.size());
+        assertEquals(Arrays.asList("r_temp", "r_helloWorld"), clients.get(1).getScope());
+        assertEquals(Arrays.asList("rs1", "rs2"), clients.get(1).getAud());
+    }
+
+    @Test
+    public void testRemovesOnlyTheAudienceNamedAfterTheResourceServer() throws Exception {
+        File manifest = folder.newFile("rss.csv");
+        try (PrintWriter out = new PrintWriter(manifest)) {
+            out.println("R,rs1,r_temp,rs1  rs10 xrs1,0x11,RS1-AS-MS-------,RS1-AS-Default-PSK-for-tokens---");
+            out.println("R,r.s,r_temp,r.s rxs,0x12,RS2-AS-MS-------,RS2-AS-Default-PSK-for-tokens---");
+        }
+
+        List<ResourceServer> rss = new ArrayList<>();
+        PeerManifest.load(manifest, 10, (c, r) -> rss.addAll(r));
+        assertEquals("rs10 xrs1", rss.get(0).getAud());
+        assertEquals("rxs", rss.get(1).getAud());
+    }
+
+    @Test
+    public void testInvalidPeer() throws Exception {
+        File manifest = folder.newFile("invalid.csv");
+        try (PrintWriter out = new PrintWriter(manifest)) {
+            out.println("C,ClientA,r_temp,rs1,0xZZ,ClientA-AS-MS---");
+        }
+        try {
+            PeerManifest.load(manifest, 10, (c, r) -> { });
+        } catch (AceException e) {
+            assertTrue(e.getMessage().contains("ClientA"));
+            return;
+        }
+        throw new AssertionError("Expected an AceException");
+    }
+}
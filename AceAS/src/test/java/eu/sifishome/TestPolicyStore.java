@@ -0,0 +1,127 @@
+package eu.sifishome;
+
+import eu.sifishome.policies.PolicyStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import se.sics.ace.AceException;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestPolicyStore {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPutFindRemove() throws Exception {
+        PolicyStore store = new PolicyStore(folder.getRoot());
+        store.put("p1", "ClientA", "temp", "read", "<Policy>1</Policy>");
+        store.put("p2", "ClientA", "temp", "write", "<Policy>2</Policy>");
+        store.put("p3", null, "temp", "read", "<Policy>3</Policy>");
+
+        assertEquals(Collections.singleton("p1"), store.find("ClientA", "temp", "read"));
+        assertEquals(Collections.singleton("p3"), store.find(PolicyStore.ANY, "temp", "read"));
+        assertEquals(new HashSet<>(Arrays.asList("p1", "p2")), store.findBySubject("ClientA"));
+        assertEquals("<Policy>2</Policy>", store.get("p2"));
+
+        store.put("p1", "ClientB", "temp", "read", "<Policy>1b</Policy>");
+        assertTrue(store.find("ClientA", "temp", "read").isEmpty());
+        assertEquals("<Policy>1b</Policy>", store.get("p1"));
+
+        assertTrue(store.remove("p2"));
+        assertFalse(store.remove("p2"));
+        assertNull(store.get("p2"));
+        assertEquals(2, store.size());
+        store.close();
+
+        // the index is rebuilt from the file
+        store = new PolicyStore(folder.getRoot());
+        assertEquals(2, store.size());
+        assertEquals(Collections.singleton("p1"), store.find("ClientB", "temp", "read"));
+        assertTrue(store.findBySubject("ClientA").isEmpty());
+        assertEquals("<Policy>3</Policy>", store.get("p3"));
+
+        store.compact();
+        assertEquals("<Policy>1b</Policy>", store.get("p1"));
+        store.close();
+        store = new PolicyStore(folder.getRoot());
+        assertEquals("<Policy>3</Policy>", store.get("p3"));
+        store.close();
+    }
+
+    @Test
+    public void testReadsDuringCompaction() throws Exception {
+        PolicyStore store = new PolicyStore(folder.getRoot());
+        for (int i = 0; i < 50; i++) {
+            store.put("p" + i, "Client" + i, "temp", "read", "<Policy>" + i + "</Policy>");
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<String> error = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            readers.add(new Thread(() -> {
+                int i = 0;
+                while (running.get() && error.get() == null) {
+                    int id = i++ % 50;
+                    try {
+                        String policy = store.get("p" + id);
+                        if (!("<Policy>" + id + "</Policy>").equals(policy)) {
+                            error.set("p" + id + " read as " + policy);
+                        }
+                    } catch (AceException e) {
+                        error.set(e.getMessage());
+                    }
+                }
+            }));
+        }
+        readers.forEach(Thread::start);
+        for (int round = 0; round < 20; round++) {
+            // rewritten with the same content, so that the offsets change
+            store.put("p" + round, "Client" + round, "temp", "read", "<Policy>" + round + "</Policy>");
+            store.compact();
+        }
+        running.set(false);
+        for (Thread t : readers) {
+            t.join();
+        }
+        store.close();
+        assertNull(error.get());
+    }
+
+    @Test
+    public void testPartialRecordIsDiscarded() throws Exception {
+        PolicyStore store = new PolicyStore(folder.getRoot());
+        store.put("p1", "ClientA", "temp", "read", "<Policy>1</Policy>");
+        store.put("p2", "ClientA", "temp", "write", "<Policy>2</Policy>");
+        store.close();
+
+        File file = new File(folder.getRoot(), PolicyStore.FILE_NAME);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        store = new PolicyStore(folder.getRoot());
+        assertEquals(1, store.size());
+        assertEquals("<Policy>1</Policy>", store.get("p1"));
+
+        store.put("p2", "ClientA", "temp", "write", "<Policy>2</Policy>");
+        store.close();
+        store = new PolicyStore(folder.getRoot());
+        assertEquals("<Policy>2</Policy>", store.get("p2"));
+        store.close();
+    }
+}
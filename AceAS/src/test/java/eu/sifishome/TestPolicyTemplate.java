@@ -0,0 +1,58 @@
+package eu.sifishome;
+
+import eu.sifishome.policies.PolicyTemplate;
+import org.junit.Test;
+import se.sics.ace.AceException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class TestPolicyTemplate {
+
+    @Test
+    public void testRenderKeepsMissingPlaceholders() {
+        PolicyTemplate template = PolicyTemplate.of("test",
+                "<Policy PolicyId=\"POLICYID_HERE\">SUBJECT_HERE RESOURCESERVER_HERE SUBJECT_HERE</Policy>");
+        Map<String, String> values = new HashMap<>();
+        values.put(PolicyTemplate.SUBJECT, "ClientA");
+        values.put(PolicyTemplate.RESOURCE_SERVER, "rs1");
+
+        assertEquals("<Policy PolicyId=\"POLICYID_HERE\">ClientA rs1 ClientA</Policy>",
+                template.render(values));
+    }
+
+    @Test
+    public void testTemplatesAreReadOnce() throws AceException {
+        PolicyTemplate template = PolicyTemplate.get("policy_template_temp");
+        assertSame(template, PolicyTemplate.get("policy_template_temp"));
+
+        Map<String, String> values = new HashMap<>();
+        values.put(PolicyTemplate.SUBJECT, "ClientA");
+        String policy = template.render(values);
+        assertFalse(policy.contains(PolicyTemplate.SUBJECT));
+        assertTrue(policy.contains(PolicyTemplate.POLICY_ID));
+        assertEquals(template.getContent().replace(PolicyTemplate.SUBJECT, "ClientA"), policy);
+    }
+
+    @Test
+    public void testTemplateWithAttributes() throws AceException {
+        String policy = PolicyTemplate.get("policy_template_temp", "attribute-temp", 1000).getContent();
+        int matches = policy.split(PolicyTemplate.ENVIRONMENT_PREFIX + "attribute-temp", -1).length - 1;
+        assertEquals(999, matches);
+        assertTrue(policy.contains("attribute-temp1000\""));
+        assertTrue(policy.contains("thermometer-reachable"));
+        assertSame(PolicyTemplate.get("policy_template_temp"),
+                PolicyTemplate.get("policy_template_temp", "attribute-temp", 1));
+    }
+
+    @Test
+    public void testMissingTemplate() {
+        assertThrows(AceException.class, () -> PolicyTemplate.get("policy_template_missing"));
+    }
+}
@@ -0,0 +1,133 @@
+package eu.sifishome;
+
+import com.upokecenter.cbor.CBORObject;
+import eu.sifishome.pdp.SessionIndex;
+import eu.sifishome.pdp.SessionReevaluator;
+import eu.sifishome.policies.PolicyTemplate;
+import org.junit.Test;
+import se.sics.ace.AceException;
+import se.sics.ace.Constants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestSessionIndex {
+
+    @Test
+    public void testPolicyAttributes() throws Exception {
+        Set<String> attributes = PolicyTemplate.getEnvironmentAttributes(
+                PolicyTemplate.get("policy_template_temp", "attribute-temp", 3).getContent());
+        assertEquals(new HashSet<>(Arrays.asList(
+                "thermometer-reachable", "attribute-temp2", "attribute-temp3")), attributes);
+    }
+
+    @Test
+    public void testAffectedSessions() {
+        SessionIndex index = new SessionIndex();
+        index.addGrant("ClientA", "rs1", "r_temp", Collections.singleton("thermometer-reachable"));
+        index.addGrant("ClientA", "rs1", "r_helloWorld", Collections.singleton("welcome-led-panel"));
+        index.addGrant("ClientB", "rs1", "r_temp", Collections.singleton("thermometer-reachable"));
+
+        index.tokenAdded("cti1", "ClientA", claims("rs1", "r_temp r_helloWorld", 1000));
+        index.tokenAdded("cti2", "ClientA", claims("rs1", "r_helloWorld", 1000));
+        index.tokenAdded("cti3", "ClientB", claims("rs1", "r_temp", 2000));
+        // no grant with attributes
+        index.tokenAdded("cti4", "ClientC", claims("rs1", "r_temp", 2000));
+        assertEquals(3, index.size());
+        assertNull(index.getSession("cti4"));
+
+        assertEquals(ctis("cti1", "cti3"),
+                ctisOf(index.getAffectedSessions(Collections.singleton("thermometer-reachable"))));
+        assertEquals(ctis("cti1", "cti2"),
+                ctisOf(index.getAffectedSessions(Collections.singleton("welcome-led-panel"))));
+
+        index.tokenRemoved("cti1");
+        assertEquals(ctis("cti3"),
+                ctisOf(index.getAffectedSessions(Collections.singleton("thermometer-reachable"))));
+
+        index.tokensExpired(1500);
+        assertEquals(1, index.size());
+        assertTrue(index.getAffectedSessions(Collections.singleton("welcome-led-panel")).isEmpty());
+    }
+
+    @Test
+    public void testReevaluateOnlyAffectedSessions() {
+        SessionIndex index = new SessionIndex();
+        for (int i = 0; i < 100; i++) {
+            index.addGrant("Client" + i, "rs1", "r_temp",
+                    Collections.singleton(i < 10 ? "hot" : "cold"));
+            index.addSession("cti" + i, "Client" + i, Collections.singleton("rs1"), "r_temp",
+                    Long.MAX_VALUE);
+        }
+        List<String> evaluated = new ArrayList<>();
+        List<String> revoked = new ArrayList<>();
+        SessionReevaluator reevaluator = new SessionReevaluator(index,
+                s -> {
+                    evaluated.add(s.getCti());
+                    return !s.getCti().equals("cti0");
+                },
+                revoked::add);
+
+        int n = reevaluator.reevaluate(index.getAffectedSessions(Collections.singleton("hot")));
+        reevaluator.close();
+        assertEquals(1, n);
+        assertEquals(10, evaluated.size());
+        assertEquals(Collections.singletonList("cti0"), revoked);
+        assertNull(index.getSession("cti0"));
+        assertEquals(99, index.size());
+    }
+
+    @Test
+    public void testFailedRevocationKeepsSession() {
+        SessionIndex index = new SessionIndex();
+        index.addGrant("ClientA", "rs1", "r_temp", Collections.singleton("hot"));
+        index.addSession("cti0", "ClientA", Collections.singleton("rs1"), "r_temp", Long.MAX_VALUE);
+        List<String> revoked = new ArrayList<>();
+        SessionReevaluator reevaluator = new SessionReevaluator(index, s -> false,
+                cti -> {
+                    if (revoked.isEmpty()) {
+                        revoked.add(null);
+                        throw new AceException("database unavailable");
+                    }
+                    revoked.add(cti);
+                });
+
+        assertEquals(0, reevaluator.reevaluate(index.getAffectedSessions(Collections.singleton("hot"))));
+        assertEquals(1, index.size());
+        // the next change of the attribute revokes the token
+        assertEquals(1, reevaluator.reevaluate(index.getAffectedSessions(Collections.singleton("hot"))));
+        reevaluator.close();
+        assertEquals(Arrays.asList(null, "cti0"), revoked);
+        assertEquals(0, index.size());
+    }
+
+    private static Map<Short, CBORObject> claims(String aud, String scope, long exp) {
+        Map<Short, CBORObject> claims = new HashMap<>();
+        claims.put(Constants.AUD, CBORObject.FromObject(aud));
+        claims.put(Constants.SCOPE, CBORObject.FromObject(scope));
+        claims.put(Constants.EXP, CBORObject.FromObject(exp));
+        return claims;
+    }
+
+    private static Set<String> ctis(String... ctis) {
+        return new HashSet<>(Arrays.asList(ctis));
+    }
+
+    private static Set<String> ctisOf(Set<SessionIndex.Session> sessions) {
+        Set<String> ctis = new HashSet<>();
+        for (SessionIndex.Session s : sessions) {
+            ctis.add(s.getCti());
+        }
+        return ctis;
+    }
+}
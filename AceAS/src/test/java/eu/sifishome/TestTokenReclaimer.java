@@ -0,0 +1,74 @@
+package eu.sifishome;
+
+import com.upokecenter.cbor.CBORObject;
+import eu.sifishome.db.TokenReclaimer;
+import org.junit.Test;
+import se.sics.ace.Constants;
+import se.sics.ace.as.DBConnector;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestTokenReclaimer {
+
+    private final List<String> deleted = new ArrayList<>();
+    private final AtomicLong now = new AtomicLong(0);
+
+    private final DBConnector db = (DBConnector) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[]{DBConnector.class},
+            (proxy, method, args) -> {
+                if (method.getName().equals("deleteToken")) {
+                    deleted.add((String) args[0]);
+                }
+                return null;
+            });
+
+    @Test
+    public void testExpiredTokensAreDeletedWithinBudget() {
+        TokenReclaimer reclaimer = new TokenReclaimer(db, now::get, 3600000L, 2);
+        reclaimer.tokenAdded("cti3", "ClientA", claims(300));
+        reclaimer.tokenAdded("cti1", "ClientA", claims(100));
+        reclaimer.tokenAdded("cti2", "ClientB", claims(200));
+        reclaimer.tokenAdded("cti4", "ClientB", Collections.emptyMap());
+
+        assertEquals(0, reclaimer.reclaim());
+
+        now.set(1000);
+        assertEquals(2, reclaimer.reclaim());
+        assertEquals(Arrays.asList("cti1", "cti2"), deleted);
+        assertEquals(1, reclaimer.reclaim());
+        assertEquals(Arrays.asList("cti1", "cti2", "cti3"), deleted);
+        assertEquals(3, reclaimer.getReclaimed());
+        assertEquals(0, reclaimer.pending());
+        reclaimer.close();
+    }
+
+    @Test
+    public void testRemovedTokensAreSkipped() {
+        TokenReclaimer reclaimer = new TokenReclaimer(db, now::get, 3600000L, 10);
+        reclaimer.tokenAdded("cti1", "ClientA", claims(100));
+        reclaimer.tokenAdded("cti2", "ClientA", claims(100));
+        reclaimer.tokenAdded("cti3", "ClientA", claims(5000));
+        reclaimer.tokenRemoved("cti1");
+
+        now.set(1000);
+        assertEquals(1, reclaimer.reclaim());
+        assertEquals(Collections.singletonList("cti2"), deleted);
+        assertEquals(1, reclaimer.pending());
+        reclaimer.close();
+    }
+
+    private static Map<Short, CBORObject> claims(long exp) {
+        Map<Short, CBORObject> claims = new HashMap<>();
+        claims.put(Constants.EXP, CBORObject.FromObject(exp));
+        return claims;
+    }
+}
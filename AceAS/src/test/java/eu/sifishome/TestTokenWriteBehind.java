@@ -0,0 +1,202 @@
+package eu.sifishome;
+
+import com.upokecenter.cbor.CBORObject;
+import eu.sifishome.db.TokenWriteBehind;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.sics.ace.AceException;
+import se.sics.ace.Constants;
+import se.sics.ace.as.DBConnector;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class TestTokenWriteBehind {
+
+    private static final String URL = "jdbc:h2:mem:writebehind;DB_CLOSE_DELAY=-1;MODE=MySQL";
+
+    private Connection conn;
+
+    @Before
+    public void createTables() throws SQLException {
+        conn = DriverManager.getConnection(URL);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE " + DBConnector.claimsTable + " ("
+                    + DBConnector.ctiColumn + " varchar(255), "
+                    + DBConnector.claimNameColumn + " SMALLINT, "
+                    + DBConnector.claimValueColumn + " varbinary(255));");
+            stmt.execute("CREATE TABLE " + DBConnector.cti2clientTable + " ("
+                    + DBConnector.ctiColumn + " varchar(255), "
+                    + DBConnector.clientIdColumn + " varchar(255));");
+            stmt.execute("CREATE TABLE " + DBConnector.ctiCounterTable + " ("
+                    + DBConnector.ctiCounterColumn + " int unsigned);");
+            stmt.execute("INSERT INTO " + DBConnector.ctiCounterTable + " VALUES (0);");
+        }
+    }
+
+    @After
+    public void dropTables() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        }
+        conn.close();
+    }
+
+    @Test
+    public void testGroupCommitWritesBeforeReturning() throws Exception {
+        TokenWriteBehind wb = new TokenWriteBehind(() -> DriverManager.getConnection(URL),
+                TokenWriteBehind.Durability.GROUP_COMMIT, 5L, 100, 50);
+        // written with the first batch
+        wb.saveCtiCounter(8L);
+
+        List<Thread> issuers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            String cti = "token" + i;
+            issuers.add(new Thread(() -> {
+                try {
+                    wb.addToken(cti, claims(cti));
+                    wb.addCti2Client(cti, "clientA");
+                } catch (AceException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        issuers.forEach(Thread::start);
+        for (Thread t : issuers) {
+            t.join();
+        }
+
+        assertEquals(16, count(DBConnector.claimsTable));
+        assertEquals(8, count(DBConnector.cti2clientTable));
+        assertEquals(8, ctiCounter());
+        wb.close();
+    }
+
+    @Test
+    public void testGroupCommitWritesTokenInOneBatch() throws Exception {
+        AtomicInteger batches = new AtomicInteger();
+        TokenWriteBehind wb = new TokenWriteBehind(() -> {
+            batches.incrementAndGet();
+            return DriverManager.getConnection(URL);
+        }, TokenWriteBehind.Durability.GROUP_COMMIT, 5L, 100, 50);
+
+        // in the order of the Token endpoint
+        wb.saveCtiCounter(1L);
+        wb.addToken("token1", claims("token1"));
+        assertEquals(0, batches.get());
+        wb.addCti2Client("token1", "clientA");
+
+        assertEquals(1, batches.get());
+        assertEquals(2, count(DBConnector.claimsTable));
+        assertEquals(1, count(DBConnector.cti2clientTable));
+        assertEquals(1, ctiCounter());
+        wb.close();
+    }
+
+    @Test
+    public void testAsyncServesPendingTokens() throws Exception {
+        TokenWriteBehind wb = new TokenWriteBehind(() -> DriverManager.getConnection(URL),
+                TokenWriteBehind.Durability.ASYNC, 60000L, 100, 50);
+
+        wb.addToken("token1", claims("token1"));
+        wb.addToken("token2", claims("token2"));
+        wb.forget("token2");
+        assertNotNull(wb.getPendingClaims("token1"));
+
+        wb.close();
+        assertNull(wb.getPendingClaims("token1"));
+        assertEquals(2, count(DBConnector.claimsTable));
+    }
+
+    @Test
+    public void testAsyncRetriesFailedBatch() throws Exception {
+        AtomicInteger failures = new AtomicInteger(2);
+        TokenWriteBehind wb = new TokenWriteBehind(() -> {
+            if (failures.getAndDecrement() > 0) {
+                throw new SQLException("Database unavailable");
+            }
+            return DriverManager.getConnection(URL);
+        }, TokenWriteBehind.Durability.ASYNC, 5L, 100, 50, 5, 1L);
+
+        wb.addToken("token1", claims("token1"));
+        wb.addCti2Client("token1", "clientA");
+        wb.close();
+
+        assertNull(wb.getPendingClaims("token1"));
+        assertEquals(2, count(DBConnector.claimsTable));
+        assertEquals(1, count(DBConnector.cti2clientTable));
+        assertEquals(0, wb.getLostTokens());
+    }
+
+    @Test
+    public void testAsyncDropsBatchAfterLastAttempt() throws Exception {
+        TokenWriteBehind wb = new TokenWriteBehind(() -> {
+            throw new SQLException("Database unavailable");
+        }, TokenWriteBehind.Durability.ASYNC, 50L, 100, 50, 3, 1L);
+
+        wb.addToken("token1", claims("token1"));
+        wb.addCti2Client("token1", "clientA");
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (wb.getLostTokens() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5L);
+        }
+        wb.close();
+
+        assertEquals(1, wb.getLostTokens());
+        assertNull(wb.getPendingClaims("token1"));
+        assertNull(wb.getPendingClient("token1"));
+        assertTrue(wb.getPendingCtis("clientA").isEmpty());
+        assertEquals(0, count(DBConnector.claimsTable));
+    }
+
+    @Test
+    public void testGroupCommitFailsAfterLastAttempt() throws Exception {
+        TokenWriteBehind wb = new TokenWriteBehind(() -> {
+            throw new SQLException("Database unavailable");
+        }, TokenWriteBehind.Durability.GROUP_COMMIT, 5L, 100, 50, 2, 1L);
+
+        wb.addToken("token1", claims("token1"));
+        assertThrows(AceException.class, () -> wb.addCti2Client("token1", "clientA"));
+        assertNull(wb.getPendingClaims("token1"));
+        assertNull(wb.getPendingClient("token1"));
+    }
+
+    private Map<Short, CBORObject> claims(String cti) {
+        Map<Short, CBORObject> claims = new HashMap<>();
+        claims.put(Constants.CTI, CBORObject.FromObject(cti.getBytes(Constants.charset)));
+        claims.put(Constants.AUD, CBORObject.FromObject("rs1"));
+        return claims;
+    }
+
+    private int count(String table) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private long ctiCounter() throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT " + DBConnector.ctiCounterColumn
+                     + " FROM " + DBConnector.ctiCounterTable)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package eu.sifishome.benchmarks;
+
+import eu.sifishome.pdp.ParallelScopeEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import se.sics.ace.AceException;
+
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latency of a token request with 1 to 10 sub-scopes, when the sub-scopes
+ * are evaluated sequentially and with the {@link ParallelScopeEvaluator}.
+ * <p>
+ * The evaluation of a sub-scope is simulated by waiting for
+ * 'evaluationMicros', as done by the UCS when reading the attributes.
+ * Sequential latency grows with the number of sub-scopes, while
+ * parallel latency stays close to the one of a single sub-scope.
+ * <p>
+ * Run with
+ * <pre>
+ * java -cp &lt;test classpath&gt; eu.sifishome.benchmarks.ParallelScopeBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelScopeBenchmark {
+
+    @Param({"1", "2", "4", "6", "8", "10"})
+    public int subScopes;
+
+    @Param({"500"})
+    public int evaluationMicros;
+
+    private String scope;
+    private ParallelScopeEvaluator evaluator;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringJoiner sj = new StringJoiner(" ");
+        for (int i = 0; i < subScopes; i++) {
+            sj.add("r_resource" + i);
+        }
+        scope = sj.toString();
+        evaluator = new ParallelScopeEvaluator(10);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        evaluator.close();
+    }
+
+    private Object evaluate(String subScope) {
+        LockSupport.parkNanos(evaluationMicros * 1000L);
+        return subScope;
+    }
+
+    @Benchmark
+    public String sequential() {
+        StringJoiner granted = new StringJoiner(" ");
+        for (String subScope : scope.split(" ")) {
+            granted.add(evaluate(subScope).toString());
+        }
+        return granted.toString();
+    }
+
+    @Benchmark
+    public String parallel() throws AceException {
+        return evaluator.evaluate(scope, this::evaluate);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ParallelScopeBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
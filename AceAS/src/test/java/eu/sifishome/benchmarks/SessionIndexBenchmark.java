@@ -0,0 +1,93 @@
+package eu.sifishome.benchmarks;
+
+import eu.sifishome.pdp.SessionIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of finding the sessions to re-evaluate when an attribute changes,
+ * through the {@link SessionIndex} and by scanning all the sessions.
+ * <p>
+ * Each session depends on one attribute. The changed attribute is
+ * referenced by 'affectedSessions' of the 'totalSessions' sessions.
+ * With the index, the cost only grows with the affected sessions.
+ * <p>
+ * Run with
+ * <pre>
+ * java -cp &lt;test classpath&gt; eu.sifishome.benchmarks.SessionIndexBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionIndexBenchmark {
+
+    private static final String CHANGED_ATTRIBUTE = "attribute-changed";
+
+    @Param({"1000", "10000", "100000"})
+    public int totalSessions;
+
+    @Param({"10", "100", "1000"})
+    public int affectedSessions;
+
+    private SessionIndex index;
+    private final List<SessionIndex.Session> sessions = new ArrayList<>();
+    private final Set<String> changed = Collections.singleton(CHANGED_ATTRIBUTE);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        index = new SessionIndex();
+        sessions.clear();
+        for (int i = 0; i < totalSessions; i++) {
+            String client = "Client" + i;
+            String attribute = i < affectedSessions ? CHANGED_ATTRIBUTE : "attribute-" + (i % 100);
+            index.addGrant(client, "rs1", "r_temp", Collections.singleton(attribute));
+            sessions.add(index.addSession("cti" + i, client, Collections.singleton("rs1"),
+                    "r_temp", Long.MAX_VALUE));
+        }
+    }
+
+    @Benchmark
+    public int indexed() {
+        return index.getAffectedSessions(changed).size();
+    }
+
+    @Benchmark
+    public int scan() {
+        int affected = 0;
+        for (SessionIndex.Session s : sessions) {
+            if (s.getAttributes().contains(CHANGED_ATTRIBUTE)) {
+                affected++;
+            }
+        }
+        return affected;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SessionIndexBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
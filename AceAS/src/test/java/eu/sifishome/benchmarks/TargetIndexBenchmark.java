@@ -0,0 +1,108 @@
+package eu.sifishome.benchmarks;
+
+import eu.sifishome.pdp.CompiledPolicy;
+import eu.sifishome.pdp.TargetIndex;
+import eu.sifishome.policies.PolicyTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of finding the policy that permits a request, through the
+ * {@link TargetIndex} and by testing the target of every policy.
+ * <p>
+ * The policies are rendered from the templates in 'policy-templates',
+ * one for each resource of each client. The requested client changes
+ * at each invocation, and the scan stops at the permitting policy,
+ * on average after a tenth of the policies.
+ * <p>
+ * Run with
+ * <pre>
+ * java -cp &lt;test classpath&gt; eu.sifishome.benchmarks.TargetIndexBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TargetIndexBenchmark {
+
+    private static final String[] RESOURCES = {"temp", "helloWorld", "humidity", "brightness", "volume"};
+    private static final String AUD = "rs1";
+    private static final String ACTION = "read";
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int policies;
+
+    private final TargetIndex<CompiledPolicy> index = new TargetIndex<>();
+    private final List<CompiledPolicy> all = new ArrayList<>();
+    private int clients;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        clients = (policies + RESOURCES.length - 1) / RESOURCES.length;
+        Map<String, String> values = new HashMap<>();
+        values.put(PolicyTemplate.RESOURCE_SERVER, AUD);
+        for (int i = 0; i < policies; i++) {
+            String client = "Client" + (i % clients);
+            String resource = RESOURCES[i / clients];
+            values.put(PolicyTemplate.POLICY_ID, "policy_" + client + "_" + AUD + "_r_" + resource);
+            values.put(PolicyTemplate.SUBJECT, client);
+            values.put(PolicyTemplate.RESOURCE, resource);
+            CompiledPolicy policy = CompiledPolicy.compile(
+                    PolicyTemplate.get("policy_template_" + resource).render(values));
+            index.put(policy, policy);
+            all.add(policy);
+        }
+    }
+
+    private String nextClient() {
+        next = (next + 1) % clients;
+        return "Client" + next;
+    }
+
+    @Benchmark
+    public boolean indexed() {
+        String client = nextClient();
+        return index.anyMatch(client, RESOURCES[0], ACTION,
+                p -> p.matches(client, AUD, RESOURCES[0], ACTION));
+    }
+
+    @Benchmark
+    public boolean scan() {
+        String client = nextClient();
+        for (CompiledPolicy p : all) {
+            if (p.matches(client, AUD, RESOURCES[0], ACTION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TargetIndexBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -339,6 +339,7 @@ public class AceClientDht implements Callable<Integer> {
         CoapClient client4AS;
         String trlUri;
         TrlStore trlStore;
+        TrlPoll trlPoll = new TrlPoll();
 
         public Poller(CoapClient client4AS, String trlUri, TrlStore trlStore) {
             this.client4AS = client4AS;
@@ -350,12 +351,15 @@ public class AceClientDht implements Callable<Integer> {
         public void run() {
             try {
                 System.out.println("Now polling:" + new Timestamp(System.currentTimeMillis()));
-                CoapResponse responseTrl =
-                        OSCOREProfileRequests.makePollRequest(
-                                client4AS, trlUri);
+                CoapResponse responseTrl = trlPoll.poll(client4AS, trlUri);
+                if (responseTrl == null) {
+                    // the TRL did not change since the last poll
+                    return;
+                }
                 TrlResponses.processResponse(responseTrl, trlStore);
                 purgeRevokedTokens(trlStore);
             } catch (AceException e) {
+                trlPoll.reset();
                 e.printStackTrace();
             }
         }
@@ -144,8 +144,21 @@ public class AceRS implements Callable<Integer> {
                 defaultValue = "" + DEFAULT_INTROSPECT_INTERVAL,
                 description = "The time interval (in seconds) between two introspection " +
                         "requests to the introspection endpoint.\n" +
+                        "It is the minimum interval if a maximum interval is specified.\n" +
                         "(default: ${DEFAULT-VALUE})\n")
         int interval;
+
+        @Option(names = {"-Y", "--maxintrospectioninterval"},
+                required = false,
+                defaultValue = "0",
+                description = "The maximum time interval (in seconds) between two " +
+                        "introspections of a token. The interval of a token doubles each " +
+                        "time it is found active, up to this value, and never exceeds half " +
+                        "the remaining lifetime of the token. It is also the longest delay " +
+                        "before a revoked token is removed.\n" +
+                        "If not greater than the introspection interval, the interval is fixed.\n" +
+                        "(default: ${DEFAULT-VALUE})\n")
+        int maxInterval;
     }
 
     static class PollingArgs {
@@ -243,11 +256,18 @@ public class AceRS implements Callable<Integer> {
 
     private int introspectInterval;
 
+    private int maxIntrospectInterval;
+
     private String trlAddr;
 
-    private final List<String> syncCtisList = new ArrayList<>();
+    private static volatile IntrospectionScheduler introspector;
 
-    private final Map<String, ScheduledExecutorService> introspectorMap = new HashMap<>();
+    // passes the tokens posted to the Authz-Info endpoint to the introspection scheduler
+    private final List<String> syncCtisList = new TokenHandoffList(cti -> {
+        if (introspector != null) {
+            introspector.submit(cti);
+        }
+    });
 
 
     //--- MAIN
@@ -274,6 +294,21 @@ public class AceRS implements Callable<Integer> {
             return -1;
         }
 
+        if (isIntrospect) {
+            CoapClient client4AS = OSCOREProfileRequests.buildClient(asUri, ctx, ctxDB);
+            AdaptiveInterval interval = new AdaptiveInterval(
+                    TimeUnit.SECONDS.toMillis(introspectInterval),
+                    TimeUnit.SECONDS.toMillis(maxIntrospectInterval));
+            introspector = new IntrospectionScheduler(new Introspector(client4AS), interval, 1000L,
+                    IntrospectionScheduler.DEFAULT_WHEEL_SIZE,
+                    IntrospectionScheduler.DEFAULT_WORKERS,
+                    IntrospectionScheduler.DEFAULT_BATCH_SIZE);
+            Set<String> validTokens = TokenRepository.getInstance().getCtis();
+            for (String cti : validTokens) {
+                introspector.schedule(cti);
+            }
+        }
+
         rs.start();
         System.out.println("Server starting");
 
@@ -296,68 +331,67 @@ public class AceRS implements Callable<Integer> {
                     pollingInterval, pollingInterval, TimeUnit.SECONDS);
         }
 
-        Set<String> validTokens = TokenRepository.getInstance().getCtis();
-        for (String cti : validTokens) {
-            startIntrospector(cti);
-        }
-
-        while (isIntrospect) {
-            synchronized (syncCtisList) {
-                while (syncCtisList.isEmpty()) {
-                    syncCtisList.wait();
-                }
-                ListIterator<String> iter = syncCtisList.listIterator();
-                while (iter.hasNext()) {
-                    startIntrospector(iter.next());
-                    iter.remove();
-                }
-                syncCtisList.notifyAll();
-            }
-        }
-
         return 0;
     }
 
-    private void startIntrospector(String cti) {
-        ScheduledExecutorService executorService = Executors
-                .newSingleThreadScheduledExecutor();
-        executorService.scheduleAtFixedRate(
-                new Introspector(cti),
-                introspectInterval, introspectInterval, TimeUnit.SECONDS);
-        introspectorMap.put(cti, executorService);
-    }
-
-    class Introspector implements Runnable {
+    class Introspector implements IntrospectionScheduler.Task {
 
-        String cti;
+        BatchIntrospection batch;
 
-        public Introspector(String cti) {
-            this.cti = cti;
+        public Introspector(CoapClient client4AS) {
+            this.batch = new BatchIntrospection(client4AS,
+                    asUri + "/" + BatchIntrospection.RESOURCE);
         }
 
         @Override
-        public void run() {
-            //System.out.println("New Introspect thread (" +
-            //        Thread.currentThread().getName() + ") for token " + cti);
-            try {
-                CBORObject cticb = CBORObject.FromObject(Base64.getDecoder().decode(cti));
-                Map<Short, CBORObject> map = introspection.getParams(cticb.GetByteString());
+        public Map<String, Long> run(List<String> ctis) {
+            Map<String, Long> results = new HashMap<>();
+            if (batch.isSupported()) {
+                try {
+                    Map<String, Map<Short, CBORObject>> statuses = batch.introspect(ctis);
+                    if (statuses != null) {
+                        for (String cti : ctis) {
+                            Map<Short, CBORObject> map = statuses.get(cti);
+                            if (map != null) {
+                                results.put(cti, getResult(cti, map));
+                            }
+                        }
+                        return results;
+                    }
+                    System.out.println("Batch introspection not supported by the AS, " +
+                            "introspecting tokens one by one.");
+                } catch (AceException e) {
+                    // introspect the tokens of this tick one by one, and try the batch again at the next
+                    System.out.println("Batch introspection failed, introspecting tokens one by one: "
+                            + e.getMessage());
+                }
+            }
+            for (String cti : ctis) {
+                try {
+                    CBORObject cticb = CBORObject.FromObject(Base64.getDecoder().decode(cti));
+                    results.put(cti, getResult(cti, introspection.getParams(cticb.GetByteString())));
+                } catch (AceException | IntrospectionException e) {
+                    e.printStackTrace();
+                }
+            }
+            return results;
+        }
 
-                CBORObject active = map.get(Constants.ACTIVE);
-                if (active != null && active.isFalse()) {
-                    System.out.println("Introspection result: Token is not valid.");
+        private long getResult(String cti, Map<Short, CBORObject> map) {
+            CBORObject active = map.get(Constants.ACTIVE);
+            if (active != null && active.isFalse()) {
+                System.out.println("Introspection result: Token is not valid.");
+                try {
                     TokenRepository.getInstance().removeToken(cti);
                     System.out.println("Access Token removed.");
-
-                    introspectorMap.get(cti).shutdown();
-                    introspectorMap.remove(cti);
-                } else {
-                    System.out.println("Introspection result: Token is valid.");
+                } catch (AceException e) {
+                    e.printStackTrace();
                 }
-            } catch (AceException | IntrospectionException e) {
-                e.printStackTrace();
+                return IntrospectionScheduler.INACTIVE;
             }
-
+            System.out.println("Introspection result: Token is valid.");
+            CBORObject exp = map.get(Constants.EXP);
+            return exp != null && exp.isNumber() ? exp.AsInt64Value() : AdaptiveInterval.NO_EXPIRATION;
         }
     }
 
@@ -366,6 +400,7 @@ public class AceRS implements Callable<Integer> {
 
         CoapClient client4AS;
         String trlUri;
+        TrlPoll trlPoll = new TrlPoll();
 
         public Poller(CoapClient client4AS, String trlUri) {
             this.client4AS = client4AS;
@@ -377,9 +412,14 @@ public class AceRS implements Callable<Integer> {
             CoapResponse responseTrl = null;
             try {
                 System.out.println("Now polling:" + new Timestamp(System.currentTimeMillis()));
-                responseTrl = OSCOREProfileRequests.makePollRequest(client4AS, trlUri);
+                responseTrl = trlPoll.poll(client4AS, trlUri);
             } catch (AceException e) {
                 e.printStackTrace();
+                return;
+            }
+            if (responseTrl == null) {
+                // the TRL did not change since the last poll
+                return;
             }
 
             CBORObject payload;
@@ -388,6 +428,7 @@ public class AceRS implements Callable<Integer> {
                 if (payload.getType() == CBORType.Map &&
                         Constants.getParams(payload).containsKey(Constants.TRL_ERROR)) {
                     System.out.println("Trl response contains an error");
+                    trlPoll.reset();
                     return;
                 }
             } catch (AceException e) {
@@ -398,6 +439,7 @@ public class AceRS implements Callable<Integer> {
             try {
                 trl.updateLocalTrl(CBORObject.DecodeFromBytes(responseTrl.getPayload()));
             } catch (AceException e) {
+                trlPoll.reset();
                 e.printStackTrace();
             }
         }
@@ -457,6 +499,11 @@ public class AceRS implements Callable<Integer> {
      */
     public static void stop() throws IOException, AceException {
         rs.stop();
+        if (introspector != null) {
+            introspector.close();
+            System.out.println(introspector);
+            introspector = null;
+        }
         ai.close();
         deleteOldTokenFiles();
         System.out.println("Server stopped");
@@ -565,5 +612,18 @@ public class AceRS implements Callable<Integer> {
         } catch (NullPointerException e) {
             introspectInterval = DEFAULT_INTROSPECT_INTERVAL;
         }
+        try {
+            maxIntrospectInterval = this.args.IntrospectionArgs.maxInterval;
+        } catch (NullPointerException e) {
+            maxIntrospectInterval = 0;
+        }
+        if (introspectInterval <= 0) {
+            throw new ParameterException(spec.commandLine(),
+                    "\nThe introspection interval (-y) must be a positive number of seconds");
+        }
+        if (maxIntrospectInterval < 0) {
+            throw new ParameterException(spec.commandLine(),
+                    "\nThe maximum introspection interval (-Y) must not be negative");
+        }
     }
 }
@@ -0,0 +1,82 @@
+package eu.sifishome;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Interval between two introspections of a token, adapted to the token.
+ * <p>
+ * A token is first introspected after the minimum interval. Each time it
+ * is found active, its interval doubles, up to the maximum interval, so
+ * that long-lived tokens are introspected less and less often. The
+ * interval never exceeds half the remaining lifetime of the token, nor
+ * goes below the minimum, which bounds the delay before a revocation is
+ * noticed to the maximum interval. When a token is found inactive, the
+ * other tokens may be revoked as well, so their intervals restart from
+ * the minimum (see {@link IntrospectionScheduler}).
+ */
+public class AdaptiveInterval {
+
+    public static final long NO_EXPIRATION = Long.MAX_VALUE;
+
+    private final long min;
+    private final long max;
+
+    // introspections at the minimum interval that were not needed
+    private final LongAdder avoided = new LongAdder();
+
+    /**
+     * @param min the minimum interval, in milliseconds
+     * @param max the maximum interval, in milliseconds, the interval is
+     *            fixed if it is not greater than the minimum
+     * @throws IllegalArgumentException if the minimum interval is not positive
+     */
+    public AdaptiveInterval(long min, long max) {
+        if (min <= 0) {
+            throw new IllegalArgumentException("The minimum interval must be positive: " + min);
+        }
+        this.min = min;
+        this.max = Math.max(min, max);
+    }
+
+    /**
+     * @return the interval before the first introspection of a token
+     */
+    public long getMin() {
+        return min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @param previous the previous interval of a token found active
+     * @param exp      the expiration time of the token, in milliseconds,
+     *                 or {@link #NO_EXPIRATION}
+     * @param now      the current time, in milliseconds
+     * @return the interval before the next introspection of the token
+     */
+    public long next(long previous, long exp, long now) {
+        long interval = previous > max / 2 ? max : previous * 2;
+        if (exp != NO_EXPIRATION) {
+            interval = Math.min(interval, (exp - now) / 2);
+        }
+        interval = Math.max(interval, min);
+        avoided.add(interval / min - 1);
+        return interval;
+    }
+
+    /**
+     * @return the number of introspections avoided, compared with
+     * introspecting every token at the minimum interval
+     */
+    public long getAvoided() {
+        return avoided.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "Introspection interval: " + min + "-" + max + " ms, "
+                + avoided.sum() + " introspections avoided";
+    }
+}
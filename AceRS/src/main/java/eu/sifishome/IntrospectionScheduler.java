@@ -0,0 +1,295 @@
+package eu.sifishome;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Schedules the periodic introspection of the tokens of the RS on a
+ * hashed timer wheel.
+ * <p>
+ * Time is divided in ticks, and the wheel has one bucket per tick of a
+ * round. A token due in n ticks is put in the bucket n slots ahead of the
+ * current one, so scheduling and cancelling a token take constant time.
+ * At each tick, a single timer thread takes the tokens due from the
+ * current bucket, and a fixed pool of workers introspects them in batches,
+ * so that the tokens due at the same time can share one request to the AS.
+ * The number of threads does not depend on the number of tokens.
+ * <p>
+ * Each token has its own interval, given by an {@link AdaptiveInterval}.
+ * When a token is found inactive, the intervals of all the tokens are
+ * reset to the minimum.
+ */
+public class IntrospectionScheduler implements AutoCloseable {
+
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+    public static final int DEFAULT_WORKERS = 4;
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final long INACTIVE = -1;
+
+    /**
+     * Introspects a batch of tokens
+     */
+    public interface Task {
+        /**
+         * @param ctis the CTIs of the tokens
+         * @return the result for each token: its expiration time, or
+         * {@link AdaptiveInterval#NO_EXPIRATION}, if it is active, and
+         * {@link #INACTIVE} otherwise. The tokens without result, e.g.,
+         * if the AS could not be reached, are introspected again after
+         * the minimum interval.
+         */
+        Map<String, Long> run(List<String> ctis);
+    }
+
+    private static final class Timeout {
+        final String cti;
+        // the tick at which the token is due
+        final long deadline;
+        // the interval that led to this deadline, in milliseconds
+        final long interval;
+
+        Timeout(String cti, long deadline, long interval) {
+            this.cti = cti;
+            this.deadline = deadline;
+            this.interval = interval;
+        }
+    }
+
+    private final Task task;
+    private final long tickMillis;
+    private final AdaptiveInterval interval;
+    private final int batchSize;
+
+    private final List<Set<Timeout>> wheel;
+    private final Object lock = new Object();
+    // the current tick, guarded by the lock
+    private long tick = 0;
+    // scheduled tokens, by CTI
+    private final Map<String, Timeout> scheduled = new ConcurrentHashMap<>();
+    // submitted tokens, scheduled at the next tick
+    private final Queue<String> submitted = new ConcurrentLinkedQueue<>();
+
+    private final ScheduledExecutorService timer;
+    private final ExecutorService workers;
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder resets = new LongAdder();
+
+    /**
+     * @param task       the introspection of a token
+     * @param interval   the interval between two introspections of a token
+     * @param tickMillis the duration of a tick, in milliseconds
+     * @param wheelSize  the number of buckets of the wheel
+     * @param workers    the number of threads introspecting the tokens
+     * @param batchSize  the maximum number of tokens introspected together
+     */
+    public IntrospectionScheduler(Task task, AdaptiveInterval interval, long tickMillis,
+                                  int wheelSize, int workers, int batchSize) {
+        this.task = task;
+        this.tickMillis = tickMillis;
+        this.interval = interval;
+        this.batchSize = batchSize;
+        this.wheel = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            wheel.add(new HashSet<>());
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemon("introspection-timer"));
+        this.workers = Executors.newFixedThreadPool(workers, daemon("introspector"));
+        this.timer.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules the introspection of a token after the minimum interval,
+     * replacing its current schedule, if any.
+     *
+     * @param cti the CTI of the token
+     */
+    public void schedule(String cti) {
+        schedule(cti, interval.getMin());
+    }
+
+    private void schedule(String cti, long millis) {
+        synchronized (lock) {
+            Timeout t = new Timeout(cti, tick + toTicks(millis), millis);
+            Timeout previous = scheduled.put(cti, t);
+            if (previous != null) {
+                bucket(previous.deadline).remove(previous);
+            }
+            bucket(t.deadline).add(t);
+        }
+    }
+
+    /**
+     * Schedules the introspection of a token after the minimum interval,
+     * counted from the next tick. Unlike
+     * {@link #schedule(String)}, it never waits for the scheduler, so it
+     * can be called from the thread handling the request that posted the
+     * token.
+     *
+     * @param cti the CTI of the token
+     */
+    public void submit(String cti) {
+        submitted.offer(cti);
+    }
+
+    /**
+     * Stops introspecting a token
+     *
+     * @param cti the CTI of the token
+     * @return true if the token was scheduled
+     */
+    public boolean cancel(String cti) {
+        synchronized (lock) {
+            Timeout t = scheduled.remove(cti);
+            if (t == null) {
+                return false;
+            }
+            bucket(t.deadline).remove(t);
+            return true;
+        }
+    }
+
+    /**
+     * @return the number of scheduled tokens
+     */
+    public int size() {
+        return scheduled.size();
+    }
+
+    /**
+     * @return the number of tokens introspected
+     */
+    public long getRuns() {
+        return runs.sum();
+    }
+
+    /**
+     * @return the number of times the intervals were reset, after a token was found inactive
+     */
+    public long getResets() {
+        return resets.sum();
+    }
+
+    /**
+     * Moves to the next tick, and introspects the tokens due
+     */
+    void advance() {
+        List<Timeout> due = new ArrayList<>();
+        synchronized (lock) {
+            tick++;
+            Iterator<Timeout> it = bucket(tick).iterator();
+            while (it.hasNext()) {
+                Timeout t = it.next();
+                // the others are due in a later round
+                if (t.deadline <= tick) {
+                    it.remove();
+                    scheduled.remove(t.cti, t);
+                    due.add(t);
+                }
+            }
+            String cti;
+            while ((cti = submitted.poll()) != null) {
+                schedule(cti, interval.getMin());
+            }
+        }
+        for (int i = 0; i < due.size(); i += batchSize) {
+            List<Timeout> batch = due.subList(i, Math.min(i + batchSize, due.size()));
+            workers.execute(() -> introspect(batch));
+        }
+    }
+
+    private void introspect(List<Timeout> batch) {
+        runs.add(batch.size());
+        List<String> ctis = new ArrayList<>(batch.size());
+        for (Timeout t : batch) {
+            ctis.add(t.cti);
+        }
+        Map<String, Long> results;
+        try {
+            results = task.run(ctis);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            results = Collections.emptyMap();
+        }
+        long now = System.currentTimeMillis();
+        boolean revoked = false;
+        synchronized (lock) {
+            for (Timeout t : batch) {
+                Long exp = results.get(t.cti);
+                if (exp != null && exp == INACTIVE) {
+                    revoked = true;
+                } else if (!scheduled.containsKey(t.cti)) {
+                    // unless the token was scheduled again in the meantime
+                    schedule(t.cti, exp == null ? interval.getMin() : interval.next(t.interval, exp, now));
+                }
+            }
+            if (revoked) {
+                reset();
+            }
+        }
+    }
+
+    /**
+     * Brings every token back to the minimum interval, as the revocation
+     * of a token may come with the revocation of others
+     */
+    private void reset() {
+        resets.increment();
+        long deadline = tick + toTicks(interval.getMin());
+        for (Timeout t : new ArrayList<>(scheduled.values())) {
+            if (t.interval > interval.getMin()) {
+                Timeout reset = new Timeout(t.cti, Math.min(t.deadline, deadline), interval.getMin());
+                bucket(t.deadline).remove(t);
+                bucket(reset.deadline).add(reset);
+                scheduled.put(t.cti, reset);
+            }
+        }
+    }
+
+    private Set<Timeout> bucket(long deadline) {
+        return wheel.get((int) (deadline % wheel.size()));
+    }
+
+    private long toTicks(long millis) {
+        return Math.max(1, (millis + tickMillis - 1) / tickMillis);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Stops the introspection of all the tokens
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "Introspection scheduler: " + scheduled.size() + " tokens, "
+                + runs.sum() + " introspections, " + interval.getAvoided() + " avoided, "
+                + resets.sum() + " resets";
+    }
+}
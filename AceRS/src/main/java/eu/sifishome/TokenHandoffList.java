@@ -0,0 +1,45 @@
+package eu.sifishome;
+
+import java.util.AbstractList;
+import java.util.function.Consumer;
+
+/**
+ * List through which the Authz-Info endpoint reports the CTIs of the
+ * tokens it stores.
+ * <p>
+ * Nothing is kept: each CTI added is passed on to a listener, e.g., the
+ * introspection scheduler. The list is always empty, so the endpoint
+ * never waits for another thread to drain it.
+ */
+public class TokenHandoffList extends AbstractList<String> {
+
+    private final Consumer<String> listener;
+
+    /**
+     * @param listener receives the CTI of each token added
+     */
+    public TokenHandoffList(Consumer<String> listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public boolean add(String cti) {
+        listener.accept(cti);
+        return true;
+    }
+
+    @Override
+    public void add(int index, String cti) {
+        listener.accept(cti);
+    }
+
+    @Override
+    public String get(int index) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: 0");
+    }
+
+    @Override
+    public int size() {
+        return 0;
+    }
+}
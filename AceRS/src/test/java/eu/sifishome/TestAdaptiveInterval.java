@@ -0,0 +1,38 @@
+package eu.sifishome;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestAdaptiveInterval {
+
+    @Test
+    public void testIntervalBacksOffUpToMaximum() {
+        AdaptiveInterval interval = new AdaptiveInterval(10, 80);
+        long next = interval.getMin();
+        long[] expected = {20, 40, 80, 80};
+        for (long e : expected) {
+            next = interval.next(next, AdaptiveInterval.NO_EXPIRATION, 0);
+            assertEquals(e, next);
+        }
+        // an interval of n minimum intervals avoids n - 1 introspections
+        assertEquals(1 + 3 + 7 + 7, interval.getAvoided());
+    }
+
+    @Test
+    public void testIntervalTightensNearExpiration() {
+        AdaptiveInterval interval = new AdaptiveInterval(10, 80);
+        assertEquals(30, interval.next(40, 1060, 1000));
+        // never below the minimum
+        assertEquals(10, interval.next(40, 1005, 1000));
+
+        AdaptiveInterval fixed = new AdaptiveInterval(10, 0);
+        assertEquals(10, fixed.next(10, AdaptiveInterval.NO_EXPIRATION, 0));
+        assertEquals(0, fixed.getAvoided());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMinimumMustBePositive() {
+        new AdaptiveInterval(0, 80);
+    }
+}
@@ -0,0 +1,153 @@
+package eu.sifishome;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestIntrospectionScheduler {
+
+    // long enough for the timer never to tick by itself during a test
+    private static final long TICK = TimeUnit.HOURS.toMillis(1);
+
+    private final List<String> introspected = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void testTokensAreIntrospectedPeriodically() {
+        IntrospectionScheduler scheduler = new IntrospectionScheduler(ctis -> {
+            introspected.addAll(ctis);
+            return results(ctis, "inactive");
+        }, new AdaptiveInterval(3 * TICK, 3 * TICK), TICK, 2, 1, 1);
+        scheduler.schedule("active");
+        scheduler.schedule("inactive");
+        assertEquals(2, scheduler.size());
+
+        // due after 3 ticks, on a wheel of 2 buckets
+        advance(scheduler, 2);
+        assertTrue(introspected.isEmpty());
+        advance(scheduler, 1);
+        // once the active token is scheduled again
+        await(() -> introspected.size() == 2 && scheduler.size() == 1);
+
+        // the active token is introspected again after the interval
+        advance(scheduler, 3);
+        await(() -> introspected.size() == 3);
+        assertEquals(Collections.singletonList("active"), introspected.subList(2, 3));
+        assertEquals(3, scheduler.getRuns());
+        scheduler.close();
+    }
+
+    @Test
+    public void testCancelledTokensAreNotIntrospected() {
+        IntrospectionScheduler scheduler = new IntrospectionScheduler(ctis -> {
+            introspected.addAll(ctis);
+            return results(ctis, null);
+        }, new AdaptiveInterval(TICK, TICK), TICK, 8, 1, 1);
+        scheduler.schedule("cti1");
+        scheduler.schedule("cti2");
+        assertTrue(scheduler.cancel("cti1"));
+        assertFalse(scheduler.cancel("cti1"));
+
+        // scheduling again replaces the previous schedule
+        scheduler.schedule("cti2");
+        assertEquals(1, scheduler.size());
+        scheduler.advance();
+        await(() -> introspected.size() == 1);
+        assertEquals(Collections.singletonList("cti2"), introspected);
+        scheduler.close();
+    }
+
+    @Test
+    public void testSubmittedTokensAreScheduledAtTheNextTick() {
+        IntrospectionScheduler scheduler = new IntrospectionScheduler(ctis -> {
+            introspected.addAll(ctis);
+            return results(ctis, null);
+        }, new AdaptiveInterval(TICK, TICK), TICK, 8, 1, 1);
+        scheduler.submit("cti1");
+        assertEquals(0, scheduler.size());
+
+        scheduler.advance();
+        assertEquals(1, scheduler.size());
+        assertTrue(introspected.isEmpty());
+        scheduler.advance();
+        await(() -> introspected.size() == 1);
+        scheduler.close();
+    }
+
+    @Test
+    public void testIntervalsAreResetWhenATokenIsInactive() {
+        IntrospectionScheduler scheduler = new IntrospectionScheduler(ctis -> {
+            introspected.addAll(ctis);
+            return results(ctis, "revoked");
+        }, new AdaptiveInterval(TICK, 8 * TICK), TICK, 16, 1, 1);
+        scheduler.schedule("valid");
+
+        // the interval of the valid token grows to 2, then 4 ticks
+        scheduler.advance();
+        await(() -> introspected.size() == 1 && scheduler.size() == 1);
+        advance(scheduler, 2);
+        await(() -> introspected.size() == 2 && scheduler.size() == 1);
+
+        // the revoked token is introspected at the next tick, and
+        // the valid token one tick later instead of three
+        scheduler.schedule("revoked");
+        scheduler.advance();
+        await(() -> scheduler.getResets() == 1);
+        assertEquals(1, scheduler.size());
+        scheduler.advance();
+        await(() -> introspected.size() == 4);
+        assertEquals(Arrays.asList("valid", "valid", "revoked", "valid"), introspected);
+        scheduler.close();
+    }
+
+    private static Map<String, Long> results(List<String> ctis, String inactive) {
+        Map<String, Long> results = new HashMap<>();
+        for (String cti : ctis) {
+            results.put(cti, cti.equals(inactive)
+                    ? IntrospectionScheduler.INACTIVE : AdaptiveInterval.NO_EXPIRATION);
+        }
+        return results;
+    }
+
+    private static void advance(IntrospectionScheduler scheduler, int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            scheduler.advance();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void testTokensDueTogetherAreBatched() {
+        List<Integer> batches = new CopyOnWriteArrayList<>();
+        IntrospectionScheduler scheduler = new IntrospectionScheduler(ctis -> {
+            batches.add(ctis.size());
+            introspected.addAll(ctis);
+            return results(ctis, null);
+        }, new AdaptiveInterval(TICK, TICK), TICK, 8, 1, 4);
+        for (int i = 0; i < 10; i++) {
+            scheduler.schedule("cti" + i);
+        }
+        scheduler.advance();
+        await(() -> introspected.size() == 10);
+        assertEquals(Arrays.asList(4, 4, 2), batches);
+        assertEquals(10, scheduler.getRuns());
+        scheduler.close();
+    }
+}
@@ -54,6 +54,12 @@ public class TestRSInputs {
         mockedAS.stop();
     }
 
+    @Test
+    public void testFailIntrospectionIntervalInput() {
+        assertNotEquals(0, new CommandLine(new AceRS()).execute("-i", "-y", "0"));
+        assertNotEquals(0, new CommandLine(new AceRS()).execute("-i", "-y", "10", "-Y", "-1"));
+    }
+
 //    @Test
 //    public void testSuccessStartRSWithIntrospection() throws Exception {
 //
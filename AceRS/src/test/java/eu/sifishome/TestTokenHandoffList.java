@@ -0,0 +1,25 @@
+package eu.sifishome;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTokenHandoffList {
+
+    @Test
+    public void testAddedTokensArePassedOn() {
+        List<String> received = new ArrayList<>();
+        List<String> list = new TokenHandoffList(received::add);
+        list.add("cti1");
+        list.addAll(Arrays.asList("cti2", "cti3"));
+
+        assertEquals(Arrays.asList("cti1", "cti2", "cti3"), received);
+        assertTrue(list.isEmpty());
+        assertEquals(0, list.size());
+    }
+}
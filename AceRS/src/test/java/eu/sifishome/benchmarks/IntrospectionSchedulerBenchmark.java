@@ -0,0 +1,148 @@
+package eu.sifishome.benchmarks;
+
+import eu.sifishome.AdaptiveInterval;
+import eu.sifishome.IntrospectionScheduler;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Steady-state cost of keeping 'tokens' live tokens introspected every
+ * 100 ms, with the {@link IntrospectionScheduler} ("wheel") and with one
+ * scheduled executor per token ("perToken").
+ * <p>
+ * While the tokens fire in the background, the benchmark times a fixed
+ * amount of work on the benchmark thread, which slows down as the
+ * introspection threads take CPU time from it. The number of live threads
+ * is printed when the tokens are started, and the 'introspections' counter
+ * reports the introspections fired during the measurement, which shows that
+ * both variants keep up with the tokens. The GC profiler reports the
+ * allocation rate of the whole JVM, including the introspection threads.
+ * <p>
+ * Each executor per token starts its own thread, so that variant is only
+ * run up to 10k tokens.
+ * <p>
+ * Run with
+ * <pre>
+ * java -cp &lt;test classpath&gt; eu.sifishome.benchmarks.IntrospectionSchedulerBenchmark
+ * </pre>
+ * or with the JMH launcher and '-prof gc'.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IntrospectionSchedulerBenchmark {
+
+    private static final long INTERVAL = 100L;
+    private static final long TICK = 10L;
+    private static final long WORK_TOKENS = 10000L;
+
+    @State(Scope.Benchmark)
+    public static class Live {
+
+        @Param({"wheel", "perToken"})
+        public String variant;
+
+        @Param({"1000", "10000"})
+        public int tokens;
+
+        final LongAdder fired = new LongAdder();
+        IntrospectionScheduler scheduler;
+        List<ScheduledExecutorService> executors;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            if (variant.equals("wheel")) {
+                // tokens without result are introspected again after the minimum interval
+                scheduler = new IntrospectionScheduler(ctis -> {
+                    fired.add(ctis.size());
+                    return Collections.emptyMap();
+                }, new AdaptiveInterval(INTERVAL, INTERVAL), TICK,
+                        IntrospectionScheduler.DEFAULT_WHEEL_SIZE,
+                        IntrospectionScheduler.DEFAULT_WORKERS,
+                        IntrospectionScheduler.DEFAULT_BATCH_SIZE);
+                for (int i = 0; i < tokens; i++) {
+                    scheduler.schedule("cti" + i);
+                }
+            } else {
+                executors = new ArrayList<>(tokens);
+                for (int i = 0; i < tokens; i++) {
+                    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+                    executor.scheduleAtFixedRate(fired::increment, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+                    executors.add(executor);
+                }
+            }
+            System.out.println(tokens + " live tokens (" + variant + "): "
+                    + Thread.activeCount() + " live threads");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            if (scheduler != null) {
+                scheduler.close();
+            }
+            if (executors != null) {
+                executors.forEach(ScheduledExecutorService::shutdownNow);
+            }
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+
+        public long introspections;
+
+        private long firedAtStart;
+        private Live live;
+
+        @Setup(Level.Iteration)
+        public void setUp(Live live) {
+            this.live = live;
+            firedAtStart = live.fired.sum();
+        }
+
+        void update() {
+            introspections = live.fired.sum() - firedAtStart;
+        }
+    }
+
+    @Benchmark
+    public void steadyState(Live live, Counters counters) {
+        Blackhole.consumeCPU(WORK_TOKENS);
+        counters.update();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(IntrospectionSchedulerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,119 @@
+package eu.sifishome;
+
+import com.upokecenter.cbor.CBORException;
+import com.upokecenter.cbor.CBORObject;
+import com.upokecenter.cbor.CBORType;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.elements.exception.ConnectorException;
+import se.sics.ace.AceException;
+import se.sics.ace.Constants;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Batched introspection of tokens at the AS.
+ * <p>
+ * The identifiers of the tokens are sent in a single OSCORE-protected
+ * request to the batch introspection endpoint of the AS, which answers
+ * with the status of each token. If the AS has no such endpoint, or does
+ * not let the RS use it, the batch introspection is marked as unsupported,
+ * and the caller falls back to introspecting the tokens one by one.
+ */
+public class BatchIntrospection {
+
+    public static final String RESOURCE = "introspect-batch";
+
+    private final CoapClient client;
+    private final String uri;
+    private volatile boolean supported = true;
+
+    /**
+     * @param client the client to the AS
+     * @param uri    the URI of the batch introspection endpoint
+     */
+    public BatchIntrospection(CoapClient client, String uri) {
+        this.client = client;
+        this.uri = uri;
+    }
+
+    /**
+     * Introspects a batch of tokens
+     *
+     * @param ctis the identifiers of the tokens, Base64-encoded
+     * @return the claims returned for each token, e.g., 'active' and 'exp',
+     * by identifier, or null if the AS does not support batch introspection
+     * @throws AceException if the request fails, or the response is malformed
+     */
+    public Map<String, Map<Short, CBORObject>> introspect(List<String> ctis) throws AceException {
+        CBORObject array = CBORObject.NewArray();
+        for (String cti : ctis) {
+            array.Add(Base64.getDecoder().decode(cti));
+        }
+        Request request = new Request(CoAP.Code.POST);
+        request.setURI(uri);
+        request.getOptions().setOscore(new byte[0]);
+        request.getOptions().setContentFormat(MediaTypeRegistry.APPLICATION_CBOR);
+        request.setPayload(array.EncodeToBytes());
+
+        CoapResponse response;
+        try {
+            response = client.advanced(request);
+        } catch (ConnectorException | IOException e) {
+            throw new AceException("Unable to introspect: " + e.getMessage());
+        }
+        if (response == null) {
+            throw new AceException("No response to the introspection request");
+        }
+        if (isUnsupported(response.getCode())) {
+            supported = false;
+            return null;
+        }
+        if (!response.isSuccess()) {
+            throw new AceException("Introspection failed: " + response.getCode()
+                    + " " + response.getResponseText());
+        }
+
+        Map<String, Map<Short, CBORObject>> statuses = new HashMap<>();
+        try {
+            CBORObject map = CBORObject.DecodeFromBytes(response.getPayload());
+            if (map.getType() != CBORType.Map) {
+                throw new CBORException("not a map");
+            }
+            for (CBORObject cti : map.getKeys()) {
+                statuses.put(Base64.getEncoder().encodeToString(cti.GetByteString()),
+                        Constants.getParams(map.get(cti)));
+            }
+        } catch (CBORException | IllegalStateException | NullPointerException e) {
+            throw new AceException("Malformed introspection response: " + e.getMessage());
+        }
+        return statuses;
+    }
+
+    private static boolean isUnsupported(CoAP.ResponseCode code) {
+        switch (code) {
+            case UNAUTHORIZED:
+            case FORBIDDEN:
+            case NOT_FOUND:
+            case METHOD_NOT_ALLOWED:
+            case NOT_IMPLEMENTED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return false once the AS answered that it does not support batch introspection
+     */
+    public boolean isSupported() {
+        return supported;
+    }
+}
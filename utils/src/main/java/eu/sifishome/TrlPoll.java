@@ -0,0 +1,71 @@
+package eu.sifishome;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.elements.exception.ConnectorException;
+import se.sics.ace.AceException;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Conditional polling of the TRL endpoint of the AS.
+ * <p>
+ * Each poll carries the ETag of the last TRL received, if any, so that
+ * the AS answers 2.03 (Valid) without payload when the TRL of the peer
+ * did not change, and the TRL is neither transferred nor processed again.
+ */
+public class TrlPoll {
+
+    private byte[] etag = null;
+    private long unchanged = 0;
+    private long changed = 0;
+
+    /**
+     * Sends an OSCORE-protected poll request to the TRL endpoint
+     *
+     * @param client the client to the AS
+     * @param trlUri the URI of the TRL endpoint, possibly with query parameters
+     * @return the response carrying the TRL, or null if the TRL did not change
+     * @throws AceException if the request cannot be sent, or it is not answered
+     */
+    public CoapResponse poll(CoapClient client, String trlUri) throws AceException {
+        Request request = new Request(CoAP.Code.GET);
+        request.setURI(trlUri);
+        request.getOptions().setOscore(new byte[0]);
+        if (etag != null) {
+            request.getOptions().addETag(etag);
+        }
+        CoapResponse response;
+        try {
+            response = client.advanced(request);
+        } catch (ConnectorException | IOException e) {
+            throw new AceException("Unable to poll the TRL: " + e.getMessage());
+        }
+        if (response == null) {
+            throw new AceException("No response to the TRL poll");
+        }
+        if (response.getCode() == CoAP.ResponseCode.VALID) {
+            unchanged++;
+            return null;
+        }
+        changed++;
+        List<byte[]> etags = response.getOptions().getETags();
+        etag = response.isSuccess() && !etags.isEmpty() ? etags.get(0) : null;
+        return response;
+    }
+
+    /**
+     * Forgets the last TRL received, so that the next poll transfers it again
+     */
+    public void reset() {
+        etag = null;
+    }
+
+    @Override
+    public String toString() {
+        return "TRL polls: " + changed + " with content, " + unchanged + " unchanged";
+    }
+}